@@ -0,0 +1,52 @@
+package com.apzumi.postsdataapplication;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Temp-file SQLite database with the posts schema, shared by the benchmarks.
+ */
+class BenchmarkDatabase implements AutoCloseable {
+
+    private final Path directory;
+    private final SqliteConnectionPool connectionPool;
+    private final PostDataDao postDataDao;
+
+    BenchmarkDatabase(int rows) throws IOException, SQLException {
+        directory = Files.createTempDirectory("posts-jmh");
+        connectionPool = new SqliteConnectionPool("jdbc:sqlite:" + directory.resolve("posts.db"), 4, 32, 5000);
+        new PostDataSchemaInitializer(connectionPool).initialize();
+        postDataDao = new PostDataDao(connectionPool);
+        if (rows > 0) {
+            postDataDao.saveAll(posts(rows));
+        }
+    }
+
+    PostDataDao getPostDataDao() {
+        return postDataDao;
+    }
+
+    /**
+     * Posts of 10 users with titles in an order different from the ids.
+     */
+    static List<PostData> posts(int count) {
+        List<PostData> postDataList = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            postDataList.add(new PostData(i % 10, i, "title " + Integer.toHexString(i * 31), "body of the post " + i));
+        }
+        return postDataList;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connectionPool.destroy();
+        Files.deleteIfExists(directory.resolve("posts.db"));
+        Files.deleteIfExists(directory.resolve("posts.db-wal"));
+        Files.deleteIfExists(directory.resolve("posts.db-shm"));
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,137 @@
+package com.apzumi.postsdataapplication;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop HTTP load generator used to compare the servlet and the "reactive" runtimes of a running application.
+ * Keeps the given number of requests in flight for the given time and writes the throughput and latency percentiles as JSON.
+ * Arguments: base URL, concurrent connections, seconds, result file and the paths requested in turn, e.g.
+ * http://localhost:8080 1000 30 target/http-load-servlet.json /db/posts?userId=1&limit=10 /db/posts/stream?userId=2
+ */
+public class HttpLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 30;
+        Path resultFile = Paths.get(args.length > 3 ? args[3] : "target/http-load-result.json");
+        List<URI> uris = new ArrayList<>();
+        for (int i = 4; i < args.length; i++) {
+            uris.add(URI.create(baseUrl + args[i]));
+        }
+        if (uris.isEmpty()) {
+            uris.add(URI.create(baseUrl + "/db/posts?userId=1&limit=10"));
+        }
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()))
+                .build();
+        // warm up both the client connections and the server
+        new LoadRun(client, uris, connections, TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 5))).run();
+        LoadRun run = new LoadRun(client, uris, connections, TimeUnit.SECONDS.toNanos(seconds));
+        run.run();
+
+        String result = run.toJson(baseUrl, connections);
+        System.out.println(result);
+        if (resultFile.getParent() != null) {
+            Files.createDirectories(resultFile.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+            writer.write(result);
+        }
+        System.exit(0);
+    }
+
+    private static class LoadRun {
+
+        private final HttpClient client;
+        private final List<HttpRequest> requests = new ArrayList<>();
+        private final int connections;
+        private final long durationNanos;
+        private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong sent = new AtomicLong();
+        private long deadline;
+        private long elapsedNanos;
+
+        LoadRun(HttpClient client, List<URI> uris, int connections, long durationNanos) {
+            this.client = client;
+            for (URI uri : uris) {
+                requests.add(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(60)).GET().build());
+            }
+            this.connections = connections;
+            this.durationNanos = durationNanos;
+        }
+
+        void run() throws InterruptedException {
+            CountDownLatch done = new CountDownLatch(connections);
+            long start = System.nanoTime();
+            deadline = start + durationNanos;
+            for (int i = 0; i < connections; i++) {
+                next(done);
+            }
+            done.await();
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        /**
+         * Sends the next request of a connection when the previous one has completed, until the deadline.
+         */
+        private void next(CountDownLatch done) {
+            long start = System.nanoTime();
+            if (start >= deadline) {
+                done.countDown();
+                return;
+            }
+            HttpRequest request = requests.get((int) (sent.getAndIncrement() % requests.size()));
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, throwable) -> {
+                        if (throwable != null || response.statusCode() >= 400) {
+                            errors.incrementAndGet();
+                        } else {
+                            latencies.add(System.nanoTime() - start);
+                        }
+                        next(done);
+                    });
+        }
+
+        String toJson(String baseUrl, int connections) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+            return String.format(
+                    "{\"url\":\"%s\",\"connections\":%d,\"seconds\":%.1f,\"requests\":%d,\"errors\":%d,"
+                            + "\"throughput\":%.1f,\"p50Ms\":%.2f,\"p90Ms\":%.2f,\"p99Ms\":%.2f,\"maxMs\":%.2f}",
+                    baseUrl, connections, seconds, sorted.size(), errors.get(), sorted.size() / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        }
+
+        private static double percentile(List<Long> sorted, double percentile) {
+            if (sorted.isEmpty()) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index)) / 1e6;
+        }
+    }
+}
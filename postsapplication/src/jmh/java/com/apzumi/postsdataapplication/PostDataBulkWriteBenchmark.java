@@ -0,0 +1,78 @@
+package com.apzumi.postsdataapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch updates and deletes of the whole table, in a single transaction each.
+ * The deleted posts are saved again before every invocation, outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostDataBulkWriteBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+    private PostDataDao postDataDao;
+    private List<PostData> postDataList;
+    private List<PostData> updated;
+    private List<Integer> ids;
+    private boolean updatedLast;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        database = new BenchmarkDatabase(0);
+        postDataDao = database.getPostDataDao();
+        postDataList = BenchmarkDatabase.posts(rows);
+        updated = new ArrayList<>(rows);
+        ids = new ArrayList<>(rows);
+        for (PostData postData : postDataList) {
+            updated.add(new PostData(postData.getUserId(), postData.getId(), "new " + postData.getTitle(), postData.getBody()));
+            ids.add(postData.getId());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void savePosts() {
+        postDataDao.saveAll(postDataList);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public PostDataBulkResponse updateAll() {
+        updatedLast = !updatedLast;
+        return postDataDao.updateAll(updatedLast ? updated : postDataList);
+    }
+
+    @Benchmark
+    public PostDataBulkResponse deleteAll() {
+        return postDataDao.deleteAll(ids);
+    }
+}
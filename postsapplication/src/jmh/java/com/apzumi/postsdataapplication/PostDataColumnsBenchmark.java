@@ -0,0 +1,103 @@
+package com.apzumi.postsdataapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and serializing the listing as a list of PostData and as PostDataColumns,
+ * from the UTF-8 bytes of the rows like the DAO reads them. The retained heap of both lists is printed
+ * at the start of every trial, the allocations are measured with -prof gc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostDataColumnsBenchmark {
+
+    private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+            "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua"};
+
+    @Param({"10000", "100000"})
+    public int posts;
+
+    private byte[][] titles;
+    private byte[][] bodies;
+    private PostDataJsonResponse listResponse;
+    private PostDataJsonResponse columnsResponse;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1);
+        titles = new byte[posts][];
+        bodies = new byte[posts][];
+        for (int i = 0; i < posts; i++) {
+            titles[i] = words(random, 6).getBytes(StandardCharsets.UTF_8);
+            bodies[i] = words(random, 30).getBytes(StandardCharsets.UTF_8);
+        }
+        List<PostData> postDataList = buildList();
+        PostDataColumns columns = buildColumns();
+        listResponse = new PostDataJsonResponse(postDataList, new ApiError());
+        columnsResponse = new PostDataJsonResponse(columns, new ApiError());
+        long listSize = GraphLayout.parseInstance(postDataList).totalSize();
+        long columnsSize = GraphLayout.parseInstance(columns).totalSize();
+        System.out.printf("%n%d posts: list %d bytes (%d per post), columns %d bytes (%d per post)%n",
+                posts, listSize, listSize / posts, columnsSize, columnsSize / posts);
+    }
+
+    @Benchmark
+    public List<PostData> buildList() {
+        List<PostData> postDataList = new ArrayList<>();
+        for (int i = 0; i < posts; i++) {
+            postDataList.add(new PostData(i % 10 + 1, i + 1,
+                    new String(titles[i], StandardCharsets.UTF_8), new String(bodies[i], StandardCharsets.UTF_8)));
+        }
+        return postDataList;
+    }
+
+    @Benchmark
+    public PostDataColumns buildColumns() {
+        PostDataColumns.Builder builder = new PostDataColumns.Builder();
+        for (int i = 0; i < posts; i++) {
+            builder.add(i % 10 + 1, i + 1, titles[i], bodies[i]);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public byte[] encodeList() throws IOException {
+        return PostDataFormat.JSON.getObjectMapper().writeValueAsBytes(listResponse);
+    }
+
+    @Benchmark
+    public byte[] encodeColumns() throws IOException {
+        return PostDataFormat.JSON.getObjectMapper().writeValueAsBytes(columnsResponse);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            words.append(i > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
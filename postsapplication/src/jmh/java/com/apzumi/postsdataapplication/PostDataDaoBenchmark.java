@@ -0,0 +1,79 @@
+package com.apzumi.postsdataapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of the PostDataDao at several table sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostDataDaoBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+    private PostDataDao postDataDao;
+    private PostDataQuery allPosts;
+    private PostDataQuery postsByTitle;
+    private PostDataQuery userPage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        database = new BenchmarkDatabase(rows);
+        postDataDao = database.getPostDataDao();
+        allPosts = new PostDataQuery();
+        postsByTitle = new PostDataQuery();
+        postsByTitle.setFilterTitle(PostDataQuery.ASCENDING);
+        userPage = new PostDataQuery();
+        userPage.setFilterTitle(PostDataQuery.ASCENDING);
+        userPage.setUserId(3);
+        userPage.setLimit(100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public PostDataJsonResponse getAllPosts() {
+        return postDataDao.getPostsFromDb(allPosts);
+    }
+
+    @Benchmark
+    public PostDataJsonResponse getPostsOrderedByTitle() {
+        return postDataDao.getPostsFromDb(postsByTitle);
+    }
+
+    @Benchmark
+    public PostDataJsonResponse getUserPageOrderedByTitle() {
+        return postDataDao.getPostsFromDb(userPage);
+    }
+
+    @Benchmark
+    public PostDataResponse getPostById() {
+        return postDataDao.getPostById(ThreadLocalRandom.current().nextInt(rows) + 1);
+    }
+}
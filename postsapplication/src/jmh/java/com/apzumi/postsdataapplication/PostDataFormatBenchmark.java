@@ -0,0 +1,87 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the /db/posts listing in the PostDataFormats, with and without gzip, and decoding it on the client side.
+ * The sizes of the bodies are printed at the start of every trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostDataFormatBenchmark {
+
+    private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+            "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua"};
+
+    @Param({"JSON", "SMILE", "CBOR"})
+    public PostDataFormat format;
+
+    @Param({"100", "10000"})
+    public int posts;
+
+    private PostDataJsonResponse response;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        List<PostData> postDataList = new ArrayList<>();
+        for (int i = 1; i <= posts; i++) {
+            postDataList.add(new PostData(i % 10 + 1, i, words(random, 6), words(random, 30)));
+        }
+        response = new PostDataJsonResponse(postDataList, new ApiError());
+        encoded = encode();
+        System.out.printf("%n%s, %d posts: %d bytes, %d bytes gzip%n", format, posts, encoded.length, encodeGzip().length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return format.getObjectMapper().writeValueAsBytes(response);
+    }
+
+    @Benchmark
+    public byte[] encodeGzip() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed, 8192)) {
+            format.getObjectMapper().writeValue(gzipOutputStream, response);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Benchmark
+    public JsonNode decode() throws IOException {
+        return format.getObjectMapper().readTree(encoded);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            words.append(i > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
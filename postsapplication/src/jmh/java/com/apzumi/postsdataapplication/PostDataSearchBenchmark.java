@@ -0,0 +1,81 @@
+package com.apzumi.postsdataapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text search of a page of 20 posts, for a rare word (a few hundred matches)
+ * and for a word in the title of a tenth of the posts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostDataSearchBenchmark {
+
+    private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"};
+    private static final int RARE_WORDS = 5000;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+    private PostDataDao postDataDao;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        database = new BenchmarkDatabase(0);
+        postDataDao = database.getPostDataDao();
+        Random random = new Random(1);
+        List<PostData> postDataList = new ArrayList<>();
+        for (int i = 1; i <= rows; i++) {
+            StringBuilder body = new StringBuilder();
+            for (int j = 0; j < 30; j++) {
+                body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            body.append("word").append(i % RARE_WORDS);
+            postDataList.add(new PostData(i % 10, i, (i % 10 == 0 ? "common " : "title ") + i, body.toString()));
+            if (postDataList.size() == 100_000) {
+                postDataDao.saveAll(postDataList);
+                postDataList.clear();
+            }
+        }
+        postDataDao.saveAll(postDataList);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public PostDataSearchResponse searchRareWord() {
+        return postDataDao.searchPosts("word" + ThreadLocalRandom.current().nextInt(RARE_WORDS), 20, 0);
+    }
+
+    @Benchmark
+    public PostDataSearchResponse searchCommonTitleWord() {
+        return postDataDao.searchPosts("common", 20, 0);
+    }
+}
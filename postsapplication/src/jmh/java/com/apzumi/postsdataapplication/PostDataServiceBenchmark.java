@@ -0,0 +1,82 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The title ordered listing of the PostDataService, read straight from the database and through the cache,
+ * and the Jackson serialization of its PostDataJsonResponse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostDataServiceBenchmark {
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+    private PostDataService uncachedService;
+    private PostDataService cachedService;
+    private PostDataQuery postsByTitle;
+    private PostDataJsonResponse response;
+    private ObjectMapper objectMapper;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        database = new BenchmarkDatabase(rows);
+        uncachedService = new PostDataService();
+        uncachedService.setPostDataDao(database.getPostDataDao());
+        cachedService = new PostDataService();
+        cachedService.setPostDataDao(new CachingPostDataDao(database.getPostDataDao(), 100000));
+        postsByTitle = new PostDataQuery();
+        postsByTitle.setFilterTitle(PostDataQuery.ASCENDING);
+        response = uncachedService.getPostsFromDb(postsByTitle, false);
+        objectMapper = new ObjectMapper();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+    }
+
+    @Benchmark
+    public PostDataJsonResponse getPostsOrderedByTitle() {
+        return uncachedService.getPostsFromDb(postsByTitle, false);
+    }
+
+    @Benchmark
+    public PostDataJsonResponse getPostsOrderedByTitleCached() {
+        return cachedService.getPostsFromDb(postsByTitle, false);
+    }
+
+    @Benchmark
+    public PostDataJsonResponse getPostsOrderedByTitleSkipUserId() {
+        return uncachedService.getPostsFromDb(postsByTitle, true);
+    }
+
+    @Benchmark
+    public byte[] serializeResponse() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(response);
+    }
+}
@@ -0,0 +1,69 @@
+package com.apzumi.postsdataapplication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single post updates of a few hot posts from 16 threads, written directly by updatePost
+ * or through the PostDataWriteBehind, acked on flush or on enqueue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class PostDataWriteBehindBenchmark {
+
+    private static final int HOT_POSTS = 256;
+
+    @Param({"direct", PostDataWriteBehind.ACK_FLUSH, PostDataWriteBehind.ACK_ENQUEUE})
+    public String ack;
+
+    private BenchmarkDatabase database;
+    private PostDataDao postDataDao;
+    private PostDataWriteBehind writeBehind;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        database = new BenchmarkDatabase(HOT_POSTS);
+        postDataDao = database.getPostDataDao();
+        if (!"direct".equals(ack)) {
+            writeBehind = new PostDataWriteBehind(postDataDao, true, 5, 1000, 10_000, ack);
+            writeBehind.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        if (writeBehind != null) {
+            writeBehind.destroy();
+        }
+        database.close();
+    }
+
+    @Benchmark
+    public ApiError updatePost() {
+        int id = ThreadLocalRandom.current().nextInt(1, HOT_POSTS + 1);
+        PostData postData = new PostData(id % 10, id, "title " + id, "updated body of the post " + id);
+        return writeBehind != null ? writeBehind.update(postData).join() : postDataDao.updatePost(postData);
+    }
+}
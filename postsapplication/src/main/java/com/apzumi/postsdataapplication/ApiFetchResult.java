@@ -0,0 +1,16 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Posts fetched from the API, with notModified set when the API answered 304 Not Modified
+ * and the posts are the last good payload kept in memory.
+ */
+@Data
+@AllArgsConstructor
+public class ApiFetchResult {
+
+    private PostDataJsonResponse response;
+    private boolean notModified;
+}
@@ -0,0 +1,111 @@
+package com.apzumi.postsdataapplication;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Bounded executors for the blocking work of the controller.
+ * Database and API calls run on separate pools, so a slow API can only fill its own pool and queue,
+ * while the Tomcat threads are given back as soon as the work is handed over.
+ * Work submitted to a full pool is rejected and answered with 503.
+ */
+@Configuration
+public class AsyncExecutionConfig implements WebMvcConfigurer {
+
+    private final ThreadPoolTaskExecutor exportExecutor;
+    private final PostDataExportLimit exportLimit;
+
+    public AsyncExecutionConfig(
+            @Qualifier("exportExecutor") ThreadPoolTaskExecutor exportExecutor,
+            PostDataExportLimit exportLimit) {
+        this.exportExecutor = exportExecutor;
+        this.exportLimit = exportLimit;
+    }
+
+    /**
+     * @return - executor of the SQLite reads and writes, sized close to the connection pool.
+     */
+    @Bean
+    public static ThreadPoolTaskExecutor dbExecutor(
+            @Value("${posts.executor.db.pool-size:8}") int poolSize,
+            @Value("${posts.executor.db.queue-capacity:500}") int queueCapacity) {
+        return executor("posts-db-", poolSize, queueCapacity);
+    }
+
+    /**
+     * @return - executor of the calls to the API, each of them may block for the whole RestTemplate timeout.
+     */
+    @Bean
+    public static ThreadPoolTaskExecutor upstreamExecutor(
+            @Value("${posts.executor.upstream.pool-size:4}") int poolSize,
+            @Value("${posts.executor.upstream.queue-capacity:50}") int queueCapacity) {
+        return executor("posts-upstream-", poolSize, queueCapacity);
+    }
+
+    /**
+     * @return - executor of the page requests of the API fetches, separate from the upstreamExecutor
+     * the fetches themselves run on, so a fetch never waits for its own pages behind other fetches.
+     */
+    @Bean
+    public static ThreadPoolTaskExecutor apiFetchExecutor(
+            @Value("${posts.executor.fetch.pool-size:8}") int poolSize,
+            @Value("${posts.executor.fetch.queue-capacity:100}") int queueCapacity) {
+        return executor("posts-fetch-", poolSize, queueCapacity);
+    }
+
+    /**
+     * @return - executor of the diff and the write stage of the sync, two threads are enough as syncs never overlap.
+     */
+    @Bean
+    public static ThreadPoolTaskExecutor syncExecutor() {
+        return executor("posts-sync-stage-", 2, 2);
+    }
+
+    /**
+     * @return - executor of the change feed subscribers, which block on their slow clients, so it never delays
+     * the database reads. A subscriber has at most one task queued, so the queue is unbounded and bounded
+     * only by the open event streams.
+     */
+    @Bean
+    public static ThreadPoolTaskExecutor changeFeedExecutor(
+            @Value("${posts.executor.changes.pool-size:4}") int poolSize) {
+        return executor("posts-changes-", poolSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return - executor of the streaming exports, each of them holds a reader connection until the export ends,
+     * so its pool size caps the concurrent exports and should stay below posts.datasource.read-pool-size,
+     * leaving the other readers to the regular reads of the dbExecutor.
+     * The waiting exports are capped by the PostDataExportLimit before they are submitted, so the queue is unbounded.
+     */
+    @Bean
+    public static ThreadPoolTaskExecutor exportExecutor(
+            @Value("${posts.executor.export.pool-size:2}") int poolSize) {
+        return executor("posts-export-", poolSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Streaming responses run on the exportExecutor, an export over the PostDataExportLimit is rejected with 503.
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(exportExecutor);
+        configurer.registerCallableInterceptors(exportLimit);
+    }
+
+    private static ThreadPoolTaskExecutor executor(String threadNamePrefix, int poolSize, int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(10);
+        return executor;
+    }
+}
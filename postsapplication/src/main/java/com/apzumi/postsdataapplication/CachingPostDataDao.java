@@ -0,0 +1,326 @@
+package com.apzumi.postsdataapplication;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Read-through cache in front of the PostDataDao.
+ * Query results are cached by the query shape and evicted in the least recently used order
+ * when the cached rows exceed maxRows. Writes evict only the entries whose results they can change.
+ */
+@Primary
+@Repository
+public class CachingPostDataDao implements PostDataDaoInterface {
+
+    private final PostDataDaoInterface postDataDao;
+    private final int maxRows;
+
+    private final LinkedHashMap<PostDataQuery, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedRows;
+    private long version;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Autowired
+    public CachingPostDataDao(
+            PostDataDao postDataDao,
+            @Value("${posts.cache.max-rows:100000}") int maxRows) {
+        this.postDataDao = postDataDao;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Returns the cached result of the query or reads it from the database and caches it.
+     * Cached lists are read-only and shared between the callers, so the posts in them must not be modified.
+     * @param query - userId filter, title order and limit/offset or keyset pagination.
+     * @return posts read from the cache or the database as a PostDataJsonResponse with an ApiError status.
+     */
+    @Override
+    public PostDataJsonResponse getPostsFromDb(PostDataQuery query) {
+        long readVersion;
+        synchronized (this) {
+            CacheEntry entry = entries.get(query);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return new PostDataJsonResponse(entry.postDataList, new ApiError());
+            }
+            readVersion = version;
+        }
+        misses.incrementAndGet();
+
+        PostDataJsonResponse postDataJsonResponse = postDataDao.getPostsFromDb(query);
+        if (postDataJsonResponse.getApiError().code != 200) {
+            return postDataJsonResponse;
+        }
+        List<PostData> postDataList = postDataJsonResponse.getPostDataList() instanceof PostDataColumns
+                ? postDataJsonResponse.getPostDataList()
+                : Collections.unmodifiableList(postDataJsonResponse.getPostDataList());
+        postDataJsonResponse.setPostDataList(postDataList);
+
+        synchronized (this) {
+            // a write finished while reading, the result may already be stale
+            if (readVersion == version && postDataList.size() <= maxRows) {
+                PostDataQuery key = query.copy();
+                CacheEntry previous = entries.put(key, new CacheEntry(key, postDataList));
+                if (previous != null) {
+                    cachedRows -= previous.postDataList.size();
+                }
+                cachedRows += postDataList.size();
+                evictOverflow();
+            }
+        }
+        return postDataJsonResponse;
+    }
+
+    /**
+     * Streams are not cached, they are read straight from the database.
+     */
+    @Override
+    public ApiError forEachPost(PostDataQuery query, PostDataHandler handler) {
+        return postDataDao.forEachPost(query, handler);
+    }
+
+    /**
+     * Point lookups use the primary key index and are not cached.
+     */
+    @Override
+    public PostDataResponse getPostById(int id) {
+        return postDataDao.getPostById(id);
+    }
+
+    /**
+     * Searches go to the FTS index, they are not cached.
+     */
+    @Override
+    public PostDataSearchResponse searchPosts(String text, int limit, int offset) {
+        return postDataDao.searchPosts(text, limit, offset);
+    }
+
+    /**
+     * The counts are read from a row per user, they are not cached.
+     */
+    @Override
+    public PostDataUserCountsResponse getUserPostCounts() {
+        return postDataDao.getUserPostCounts();
+    }
+
+    @Override
+    public PostDataUserCountsResponse getTopUsers(int limit) {
+        return postDataDao.getTopUsers(limit);
+    }
+
+    @Override
+    public PostDataChangesResponse getChanges(long afterSeq, int limit) {
+        return postDataDao.getChanges(afterSeq, limit);
+    }
+
+    @Override
+    public ApiError savePost(PostData postData) {
+        ApiError status = postDataDao.savePost(postData);
+        if (status.code == 200) {
+            invalidate(Collections.singleton(postData.getId()), Collections.singleton(postData.getUserId()));
+        }
+        return status;
+    }
+
+    /**
+     * Saves all the posts and evicts the entries of the affected ids and users,
+     * also when some of the chunks failed, since the others are already written.
+     */
+    @Override
+    public PostDataBatchResponse saveAll(List<PostData> postDataList) {
+        PostDataBatchResponse batchResponse = postDataDao.saveAll(postDataList);
+        invalidate(
+                postDataList.stream().map(PostData::getId).collect(Collectors.toSet()),
+                postDataList.stream().map(PostData::getUserId).collect(Collectors.toSet()));
+        return batchResponse;
+    }
+
+    @Override
+    public Map<Integer, Long> getFingerprints() {
+        return postDataDao.getFingerprints();
+    }
+
+    /**
+     * Applies the sync diff and evicts the entries of the written and deleted posts.
+     * An empty diff evicts nothing.
+     */
+    @Override
+    public ApiError applyDiff(PostDataDiff diff) {
+        ApiError status = postDataDao.applyDiff(diff);
+        if (!diff.isEmpty()) {
+            Set<Integer> ids = new HashSet<>(diff.getDeletes());
+            Set<Integer> userIds = new HashSet<>();
+            for (List<PostData> postDataList : Arrays.asList(diff.getInserts(), diff.getUpdates())) {
+                for (PostData postData : postDataList) {
+                    ids.add(postData.getId());
+                    userIds.add(postData.getUserId());
+                }
+            }
+            invalidate(ids, userIds);
+        }
+        return status;
+    }
+
+    @Override
+    public ApiError updatePost(PostData postData) {
+        ApiError status = postDataDao.updatePost(postData);
+        if (status.code == 200) {
+            invalidate(Collections.singleton(postData.getId()), Collections.singleton(postData.getUserId()));
+        }
+        return status;
+    }
+
+    @Override
+    public ApiError deletePost(int id) {
+        ApiError status = postDataDao.deletePost(id);
+        if (status.code == 200) {
+            invalidate(Collections.singleton(id), Collections.emptySet());
+        }
+        return status;
+    }
+
+    /**
+     * Updates the posts and evicts the entries of their ids and new users.
+     * The entries holding a post under its previous user are evicted by its id.
+     */
+    @Override
+    public PostDataBulkResponse updateAll(List<PostData> postDataList) {
+        PostDataBulkResponse bulkResponse = postDataDao.updateAll(postDataList);
+        if (bulkResponse.getRows() > 0) {
+            invalidate(
+                    postDataList.stream().map(PostData::getId).collect(Collectors.toSet()),
+                    postDataList.stream().map(PostData::getUserId).collect(Collectors.toSet()));
+        }
+        return bulkResponse;
+    }
+
+    @Override
+    public PostDataBulkResponse deleteAll(List<Integer> ids) {
+        PostDataBulkResponse bulkResponse = postDataDao.deleteAll(ids);
+        if (bulkResponse.getRows() > 0) {
+            invalidate(new HashSet<>(ids), Collections.emptySet());
+        }
+        return bulkResponse;
+    }
+
+    /**
+     * Updates and deletes the posts and evicts the entries of their ids and the new users of the updated ones.
+     */
+    @Override
+    public PostDataBulkResponse writeAll(List<PostData> updates, List<Integer> deletes) {
+        PostDataBulkResponse bulkResponse = postDataDao.writeAll(updates, deletes);
+        if (bulkResponse.getRows() > 0) {
+            Set<Integer> ids = updates.stream().map(PostData::getId).collect(Collectors.toSet());
+            ids.addAll(deletes);
+            invalidate(ids, updates.stream().map(PostData::getUserId).collect(Collectors.toSet()));
+        }
+        return bulkResponse;
+    }
+
+    /**
+     * @return - version of the posts table, changed after the cache entries affected by a write are evicted,
+     * so anything read from the cache with the new version is up to date.
+     */
+    @Override
+    public synchronized long getTableVersion() {
+        return version;
+    }
+
+    @Override
+    public long getLocalWriteVersion() {
+        return postDataDao.getLocalWriteVersion();
+    }
+
+    /**
+     * @return - hit, miss, eviction and invalidation counters and the current size of the cache.
+     */
+    public synchronized PostDataCacheStats getStats() {
+        return new PostDataCacheStats(
+                hits.get(), misses.get(), evictions.get(), invalidations.get(), entries.size(), cachedRows, maxRows);
+    }
+
+    /**
+     * Evicts the entries whose results can be changed by writing the given ids of the given users.
+     * A written post can change the result of a query when:
+     * - the query selects all the users or the post's user (the post can join the result),
+     * - the result contains the post or the query pages after it (the post can leave the result or move),
+     * - the query skips rows with an offset (any row before the page shifts it).
+     * Keyset pages of the other users which don't contain the post stay valid.
+     */
+    private synchronized void invalidate(Set<Integer> ids, Set<Integer> userIds) {
+        version++;
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            PostDataQuery query = entry.query;
+            boolean affected = query.getUserId() == null
+                    || userIds.contains(query.getUserId())
+                    || (query.getOffset() != null && query.getOffset() > 0)
+                    || (query.getAfterId() != null && ids.contains(query.getAfterId()))
+                    || entry.containsAny(ids);
+            if (affected) {
+                iterator.remove();
+                cachedRows -= entry.postDataList.size();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (cachedRows > maxRows && iterator.hasNext()) {
+            cachedRows -= iterator.next().postDataList.size();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final PostDataQuery query;
+        private final List<PostData> postDataList;
+        private Set<Integer> ids;
+
+        private CacheEntry(PostDataQuery query, List<PostData> postDataList) {
+            this.query = query;
+            this.postDataList = postDataList;
+        }
+
+        private boolean containsAny(Set<Integer> writtenIds) {
+            if (ids == null) {
+                ids = new HashSet<>();
+                if (postDataList instanceof PostDataColumns) {
+                    PostDataColumns columns = (PostDataColumns) postDataList;
+                    for (int i = 0; i < columns.size(); i++) {
+                        ids.add(columns.getId(i));
+                    }
+                } else {
+                    for (PostData postData : postDataList) {
+                        ids.add(postData.getId());
+                    }
+                }
+            }
+            if (writtenIds.size() > ids.size()) {
+                return ids.stream().anyMatch(writtenIds::contains);
+            }
+            return writtenIds.stream().anyMatch(ids::contains);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Status of one chunk of a batch operation.
+ * firstIndex and rows point at the chunk's position in the list passed to the batch operation.
+ */
+@Data
+@AllArgsConstructor
+public class ChunkStatus {
+
+    private int firstIndex;
+    private int rows;
+    private ApiError apiError;
+}
@@ -1,42 +1,136 @@
-package com.apzumi.postsdataapplication;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
-import org.springframework.stereotype.Component;
-
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Timer;
-
-@Component
-public class CyclicDownloader {
-
-    private static final Logger LOGGER = LoggerFactory.getLogger(CyclicDownloader.class);
-    private final int PERIOD =  86400000; //24h
-
-    @Autowired
-    private CyclicDownloaderTimerTask cyclicDownloaderTimerTask;
-
-    /**
-     * Runs CyclicDownloaderTimerTask with a period specified in PERIOD.
-     */
-    @EventListener(ApplicationReadyEvent.class)
-    public void runCyclicDownloader() {
-
-        try {
-            DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            Date date = dateFormatter.parse("2020-10-01 00:00:00");
-
-            Timer timer = new Timer();
-            timer.schedule(cyclicDownloaderTimerTask, date, PERIOD);
-        } catch (ParseException e) {
-            LOGGER.info(e.getMessage());
-        }
-
-    }
-}
+package com.apzumi.postsdataapplication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Schedules the sync of the posts from the API to the database.
+ * Syncs run on a single dedicated thread, either on the posts.sync.cron expression
+ * or posts.sync.fixed-delay milliseconds after the previous one finished, so two syncs never overlap.
+ * Every run is delayed by a random jitter of up to posts.sync.jitter milliseconds,
+ * and a failed run is retried up to posts.sync.max-retries times with an exponential backoff.
+ */
+@Component
+public class CyclicDownloader implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CyclicDownloader.class);
+
+    private final PostDataService postDataService;
+    private final boolean enabled;
+    private final String cron;
+    private final long fixedDelay;
+    private final long initialDelay;
+    private final long jitter;
+    private final int maxRetries;
+    private final long retryBackoff;
+
+    private ThreadPoolTaskScheduler scheduler;
+
+    @Autowired
+    public CyclicDownloader(
+            PostDataService postDataService,
+            @Value("${posts.sync.enabled:true}") boolean enabled,
+            @Value("${posts.sync.cron:}") String cron,
+            @Value("${posts.sync.fixed-delay:86400000}") long fixedDelay,
+            @Value("${posts.sync.initial-delay:60000}") long initialDelay,
+            @Value("${posts.sync.jitter:60000}") long jitter,
+            @Value("${posts.sync.max-retries:3}") int maxRetries,
+            @Value("${posts.sync.retry-backoff:10000}") long retryBackoff) {
+        this.postDataService = postDataService;
+        this.enabled = enabled;
+        this.cron = cron;
+        this.fixedDelay = fixedDelay;
+        this.initialDelay = initialDelay;
+        this.jitter = jitter;
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * Starts the scheduler once the application is ready, so the first sync never slows down the startup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void runCyclicDownloader() {
+        if (!enabled) {
+            LOGGER.info("Scheduled sync is disabled.");
+            return;
+        }
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("posts-sync-");
+        scheduler.initialize();
+        scheduler.schedule(this::runScheduledSync, trigger());
+        LOGGER.info("Scheduled sync started: " + (cron.isEmpty() ? "fixed delay " + fixedDelay + " ms" : "cron " + cron)
+                + ", initial delay " + initialDelay + " ms, jitter " + jitter + " ms.");
+    }
+
+    /**
+     * Runs the sync, retrying the failed runs with an exponential backoff.
+     * A sync already started by someone else isn't retried.
+     */
+    void runScheduledSync() {
+        long backoff = retryBackoff;
+        for (int attempt = 0; ; attempt++) {
+            int code;
+            try {
+                code = postDataService.syncPostsFromApiToDb().getApiError().code;
+            } catch (RuntimeException e) {
+                LOGGER.info(e.getMessage());
+                code = 500;
+            }
+            if (code == 200 || code == 409 || !isRetryable(code) || attempt >= maxRetries) {
+                return;
+            }
+            LOGGER.info("Sync failed with status " + code + ", retrying in " + backoff + " ms.");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff *= 2;
+        }
+    }
+
+    private static boolean isRetryable(int code) {
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    /**
+     * First run after the initial delay, then on the cron expression or the fixed delay after the previous run,
+     * always with a random jitter.
+     */
+    private Trigger trigger() {
+        CronTrigger cronTrigger = cron.isEmpty() ? null : new CronTrigger(cron);
+        return triggerContext -> {
+            long next;
+            if (triggerContext.lastCompletionTime() == null) {
+                next = System.currentTimeMillis() + initialDelay;
+            } else if (cronTrigger != null) {
+                next = cronTrigger.nextExecutionTime(triggerContext).getTime();
+            } else {
+                next = triggerContext.lastCompletionTime().getTime() + fixedDelay;
+            }
+            return new Date(next + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0));
+        };
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.apzumi.postsdataapplication;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Connection borrowed from the SqliteConnectionPool.
+ * Keeps its own cache of prepared statements, so the same SQL is compiled only once per connection.
+ * Closing it returns the connection to the pool instead of closing the database file.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    private final SqliteConnectionPool pool;
+    private final Connection connection;
+    private final boolean writer;
+    private final Map<String, PreparedStatement> statementCache;
+    private Runnable afterRelease;
+
+    PooledConnection(SqliteConnectionPool pool, Connection connection, boolean writer, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.writer = writer;
+        this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns cached prepared statement for the given SQL or prepares a new one.
+     * Statement is owned by the connection and must not be closed by the caller.
+     * @param sql - SQL of the statement.
+     * @return - prepared statement with cleared parameters.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statementCache.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * @return - underlying JDBC connection, e.g. to control the transaction.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    boolean isWriter() {
+        return writer;
+    }
+
+    /**
+     * @param action - run once by the borrowing thread after the connection is back in the pool,
+     *        so it never holds the writer. Only the last action set before the close is run.
+     */
+    void afterRelease(Runnable action) {
+        afterRelease = action;
+    }
+
+    /**
+     * Rolls back unfinished transaction and gives the connection back to the pool.
+     */
+    @Override
+    public void close() {
+        try {
+            if (!connection.isClosed() && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            closePhysically();
+        }
+        Runnable action = afterRelease;
+        afterRelease = null;
+        pool.release(this);
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    void closePhysically() {
+        Iterator<PreparedStatement> iterator = statementCache.values().iterator();
+        while (iterator.hasNext()) {
+            closeQuietly(iterator.next());
+            iterator.remove();
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    boolean isClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.apzumi.postsdataapplication;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the posts in batches while they are decoded from the API response.
+ */
+@FunctionalInterface
+public interface PostDataBatchHandler {
+
+    void handle(List<PostData> batch) throws IOException;
+}
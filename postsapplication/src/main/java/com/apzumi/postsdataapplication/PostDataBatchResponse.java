@@ -0,0 +1,18 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Result of a batch operation: status of every chunk and the overall ApiError status,
+ * which is the error of the first failed chunk or OK when all of them succeeded.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataBatchResponse {
+
+    private List<ChunkStatus> chunks;
+    private ApiError apiError;
+}
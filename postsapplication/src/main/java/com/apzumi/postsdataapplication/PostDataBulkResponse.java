@@ -0,0 +1,18 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Result of a bulk update or delete, which runs as a single transaction.
+ * results[i] is the number of rows changed by the i-th item of the request: 1 when it was applied,
+ * 0 when there is no post of its id. All of them are 0 when the transaction failed and was rolled back.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataBulkResponse {
+
+    private int[] results;
+    private int rows;
+    private ApiError apiError;
+}
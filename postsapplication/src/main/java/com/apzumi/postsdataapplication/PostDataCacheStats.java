@@ -0,0 +1,21 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Counters of the posts cache, used to tune its size.
+ * evictions are the entries dropped to fit in maxRows, invalidations the entries dropped after writes.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataCacheStats {
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private int entries;
+    private int rows;
+    private int maxRows;
+}
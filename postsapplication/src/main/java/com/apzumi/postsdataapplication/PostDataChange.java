@@ -0,0 +1,27 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Insert, update or delete of a post, numbered by the change sequence.
+ * The postData of an insert or an update is the post as it is when the change is read, null when it was deleted since,
+ * and always null for a delete. A reset tells the client that the changes before its seq are no longer kept,
+ * so the posts have to be read again.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PostDataChange {
+
+    static final String INSERT = "insert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+    static final String RESET = "reset";
+
+    private long seq;
+    private String type;
+    private int id;
+    private PostData postData;
+}
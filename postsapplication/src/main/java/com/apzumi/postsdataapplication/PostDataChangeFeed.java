@@ -0,0 +1,210 @@
+package com.apzumi.postsdataapplication;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Pushes the changes of the posts to the subscribers of /db/posts/changes.
+ * Every write committed by the PostDataDao, the sync included, wakes the subscriptions, which read the changes
+ * after their last sequence number from the change log in pages of posts.changes.page-size, on the changeFeedExecutor,
+ * so a slow client blocks a thread of the feed and never one of the dbExecutor.
+ * An idle feed does no reads, and a subscriber reads only the changes, never the whole table.
+ * The subscribers following at the same sequence number share the page read by the first of them.
+ */
+@Component
+public class PostDataChangeFeed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataChangeFeed.class);
+
+    private final PostDataDao postDataDao;
+    private final Executor executor;
+    private final int pageSize;
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private volatile Page lastPage;
+
+    @Autowired
+    public PostDataChangeFeed(
+            PostDataDao postDataDao,
+            @Qualifier("changeFeedExecutor") Executor executor,
+            @Value("${posts.changes.page-size:500}") int pageSize) {
+        this.postDataDao = postDataDao;
+        this.executor = executor;
+        this.pageSize = Math.max(1, pageSize);
+        postDataDao.addChangeListener(this::changed);
+    }
+
+    /**
+     * Starts sending the changes after the given sequence number, the ones already logged first.
+     * @param afterSeq - sequence number of the last change seen, -1 for the changes from now on.
+     * @param consumer - called with every change in order, preceded by a reset when the changes after afterSeq
+     *        are no longer kept. An IOException ends the subscription.
+     *        It runs on the changeFeedExecutor, never on more than one thread at a time.
+     * @param onError - called when the subscription ends because of the consumer, the database
+     *        or the executor shutting down.
+     * @return - subscription to cancel when the client is gone.
+     */
+    public Subscription subscribe(long afterSeq, ChangeConsumer consumer, Consumer<Throwable> onError) {
+        Subscription subscription = new Subscription(afterSeq, consumer, onError);
+        subscriptions.add(subscription);
+        subscription.signal();
+        return subscription;
+    }
+
+    public int getSubscribers() {
+        return subscriptions.size();
+    }
+
+    private void changed() {
+        subscriptions.forEach(Subscription::signal);
+    }
+
+    /**
+     * Reads the page of the changes after afterSeq, or takes it from the last page read
+     * when it was read after the same sequence number and no write was committed since.
+     */
+    private PostDataChangesResponse read(long afterSeq) {
+        long version = postDataDao.getTableVersion();
+        Page page = lastPage;
+        if (page != null && page.afterSeq == afterSeq && page.version == version) {
+            return page.response;
+        }
+        PostDataChangesResponse response = postDataDao.getChanges(afterSeq, pageSize);
+        if (response.getApiError().code == 200) {
+            lastPage = new Page(afterSeq, version, response);
+        }
+        return response;
+    }
+
+    /**
+     * Registers posts.changes.subscribers, the open subscriptions.
+     */
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("posts.changes.subscribers", this, PostDataChangeFeed::getSubscribers)
+                .description("Open subscriptions of the posts change feed")
+                .register(meterRegistry);
+    }
+
+    @FunctionalInterface
+    public interface ChangeConsumer {
+
+        void accept(PostDataChange change) throws IOException;
+    }
+
+    /**
+     * Subscriber following the change log from its last sequence number.
+     * The signals of the writes are counted, and a single read is scheduled while any are left,
+     * so a burst of writes wakes the subscriber once and a slow one never runs twice at a time.
+     */
+    public class Subscription {
+
+        private final ChangeConsumer consumer;
+        private final Consumer<Throwable> onError;
+        private final AtomicInteger signals = new AtomicInteger();
+        private volatile boolean cancelled;
+        // read and written only by the scheduled reads, which follow each other
+        private long seq;
+
+        private Subscription(long afterSeq, ChangeConsumer consumer, Consumer<Throwable> onError) {
+            this.seq = afterSeq;
+            this.consumer = consumer;
+            this.onError = onError;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        private void signal() {
+            if (signals.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = signals.get();
+            while (!cancelled) {
+                try {
+                    sendChanges();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+                missed = signals.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void sendChanges() throws IOException {
+            PostDataChangesResponse response;
+            do {
+                response = read(seq);
+                if (response.getApiError().code != 200) {
+                    throw new IOException(response.getApiError().message);
+                }
+                if (response.isReset()) {
+                    long resetSeq = response.getChanges().isEmpty() ? response.getLastSeq()
+                            : response.getChanges().get(0).getSeq() - 1;
+                    consumer.accept(new PostDataChange(resetSeq, PostDataChange.RESET, 0, null));
+                }
+                for (PostDataChange change : response.getChanges()) {
+                    if (cancelled) {
+                        return;
+                    }
+                    consumer.accept(change);
+                }
+                seq = response.getLastSeq();
+                Counter.builder("posts.changes.sent")
+                        .description("Changes sent to the subscribers of the posts change feed")
+                        .register(meterRegistry)
+                        .increment(response.getChanges().size());
+            } while (response.getChanges().size() == pageSize);
+        }
+
+        private void fail(Throwable e) {
+            if (!cancelled) {
+                LOGGER.info("Change feed subscription after " + seq + " ended: " + e.getMessage());
+                cancel();
+                onError.accept(e);
+            }
+        }
+    }
+
+    private static class Page {
+
+        private final long afterSeq;
+        private final long version;
+        private final PostDataChangesResponse response;
+
+        private Page(long afterSeq, long version, PostDataChangesResponse response) {
+            this.afterSeq = afterSeq;
+            this.version = version;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Changes following a sequence number with the ApiError status of the query.
+ * lastSeq is the sequence number to read the next changes after, reset is set when the changes right after
+ * the requested one are no longer kept, or the sequence number is ahead of the log.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataChangesResponse {
+
+    private List<PostDataChange> changes;
+    private long lastSeq;
+    private boolean reset;
+    private ApiError apiError;
+}
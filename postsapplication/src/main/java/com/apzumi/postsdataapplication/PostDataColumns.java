@@ -0,0 +1,287 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of posts kept in columns: the userIds and ids in int arrays
+ * and the titles and bodies as UTF-8 in pages of 64 KB, so they are copied once while the rows are added.
+ * A row takes 20 bytes of ids, page and offsets and the bytes of its text, instead of a PostData with two Strings,
+ * which is about 100 bytes of headers, references and hashes for every post.
+ * The PostData objects are created only when an element is read, and the serializer writes the columns directly.
+ */
+@JsonSerialize(using = PostDataColumns.Serializer.class)
+public class PostDataColumns extends AbstractList<PostData> implements RandomAccess {
+
+    private final int size;
+    private final int[] userIds;
+    private final int[] ids;
+    private final byte[][] pages;
+    // page of the title and the body of every row
+    private final int[] rowPages;
+    // ends of the texts in their page, the title of the row i ends at offsets[2i] and its body at offsets[2i + 1],
+    // every text starts at the end of the previous one in the same page, a null text has the complement of its end
+    private final int[] offsets;
+
+    private PostDataColumns(int size, int[] userIds, int[] ids, byte[][] pages, int[] rowPages, int[] offsets) {
+        this.size = size;
+        this.userIds = userIds;
+        this.ids = ids;
+        this.pages = pages;
+        this.rowPages = rowPages;
+        this.offsets = offsets;
+    }
+
+    @Override
+    public PostData get(int index) {
+        checkIndex(index);
+        return new PostData(getUserId(index), ids[index], string(2 * index), string(2 * index + 1));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int getUserId(int index) {
+        checkIndex(index);
+        return userIds != null ? userIds[index] : 0;
+    }
+
+    public int getId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    /**
+     * @return - view of the same posts with all the userIds set to 0, sharing the ids and the text with this list.
+     */
+    public PostDataColumns withoutUserIds() {
+        return new PostDataColumns(size, null, ids, pages, rowPages, offsets);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private int start(int column) {
+        int row = column >> 1;
+        if (column == 0 || (column & 1) == 0 && rowPages[row - 1] != rowPages[row]) {
+            return 0;
+        }
+        int previousEnd = offsets[column - 1];
+        return previousEnd >= 0 ? previousEnd : ~previousEnd;
+    }
+
+    private String string(int column) {
+        int end = offsets[column];
+        if (end < 0) {
+            return null;
+        }
+        int start = start(column);
+        return new String(pages[rowPages[column >> 1]], start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the UTF-8 of the text into the buffer, which is grown when the text doesn't fit.
+     * @return - the buffer holding the text from its start, null for a null text.
+     */
+    private char[] decode(int column, char[] buffer, int[] length) {
+        int end = offsets[column];
+        if (end < 0) {
+            return null;
+        }
+        int start = start(column);
+        byte[] text = pages[rowPages[column >> 1]];
+        if (buffer.length < end - start) {
+            buffer = new char[end - start];
+        }
+        int chars = 0;
+        for (int i = start; i < end; ) {
+            int b = text[i++];
+            if (b >= 0) {
+                buffer[chars++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                buffer[chars++] = (char) (((b & 0x1F) << 6) | (text[i++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                buffer[chars++] = (char) (((b & 0x0F) << 12) | ((text[i++] & 0x3F) << 6) | (text[i++] & 0x3F));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((text[i++] & 0x3F) << 12) | ((text[i++] & 0x3F) << 6) | (text[i++] & 0x3F);
+                buffer[chars++] = Character.highSurrogate(codePoint);
+                buffer[chars++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        length[0] = chars;
+        return buffer;
+    }
+
+    /**
+     * Appends the rows in order, growing the id columns by half of their size when they are full.
+     * The texts of a row go to the last page, or to a new one when they don't fit in it.
+     * The first row always starts a page, even with empty texts, so every row has a page to point to.
+     */
+    public static class Builder {
+
+        private static final int PAGE_SIZE = 64 * 1024;
+
+        private int size;
+        private int[] userIds;
+        private int[] ids;
+        private int[] rowPages;
+        private int[] offsets;
+        private final List<byte[]> pages = new ArrayList<>();
+        private byte[] page = new byte[0];
+        private int pageLength;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int capacity) {
+            userIds = new int[capacity];
+            ids = new int[capacity];
+            rowPages = new int[capacity];
+            offsets = new int[2 * capacity];
+        }
+
+        /**
+         * @param title - UTF-8 bytes of the title, null for a null title.
+         * @param body - UTF-8 bytes of the body, null for a null body.
+         */
+        public Builder add(int userId, int id, byte[] title, byte[] body) {
+            if (size == ids.length) {
+                int capacity = size + Math.max(16, size >> 1);
+                userIds = Arrays.copyOf(userIds, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                rowPages = Arrays.copyOf(rowPages, capacity);
+                offsets = Arrays.copyOf(offsets, 2 * capacity);
+            }
+            int length = (title != null ? title.length : 0) + (body != null ? body.length : 0);
+            if (pages.isEmpty() || pageLength + length > page.length) {
+                addPage(Math.max(PAGE_SIZE, length));
+            }
+            userIds[size] = userId;
+            ids[size] = id;
+            rowPages[size] = pages.size() - 1;
+            offsets[2 * size] = append(title);
+            offsets[2 * size + 1] = append(body);
+            size++;
+            return this;
+        }
+
+        public Builder add(PostData postData) {
+            return add(postData.getUserId(), postData.getId(), utf8(postData.getTitle()), utf8(postData.getBody()));
+        }
+
+        /**
+         * @return - the posts added so far, in columns trimmed to their size.
+         */
+        public PostDataColumns build() {
+            byte[][] builtPages = pages.toArray(new byte[0][]);
+            if (builtPages.length > 0) {
+                builtPages[builtPages.length - 1] = Arrays.copyOf(page, pageLength);
+            }
+            return new PostDataColumns(
+                    size,
+                    Arrays.copyOf(userIds, size),
+                    Arrays.copyOf(ids, size),
+                    builtPages,
+                    Arrays.copyOf(rowPages, size),
+                    Arrays.copyOf(offsets, 2 * size));
+        }
+
+        // the full pages are kept as they are, their unused end is shorter than the texts of the row that didn't fit
+        private void addPage(int pageSize) {
+            page = new byte[pageSize];
+            pageLength = 0;
+            pages.add(page);
+        }
+
+        private int append(byte[] bytes) {
+            if (bytes == null) {
+                return ~pageLength;
+            }
+            System.arraycopy(bytes, 0, page, pageLength, bytes.length);
+            pageLength += bytes.length;
+            return pageLength;
+        }
+
+        private static byte[] utf8(String string) {
+            return string != null ? string.getBytes(StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    /**
+     * Writes the posts like the PostData serializer does, leaving out the zero ids and the null Strings,
+     * but straight from the columns, without creating the PostData objects and their Strings.
+     * The texts are decoded into a reused char buffer, JsonGenerator.writeUTF8String ignores the offset
+     * of the text in the JSON generator of this Jackson version.
+     */
+    public static class Serializer extends StdSerializer<PostDataColumns> {
+
+        private static final long serialVersionUID = 1L;
+        private static final SerializableString USERID = new SerializedString("userId");
+        private static final SerializableString ID = new SerializedString("id");
+        private static final SerializableString TITLE = new SerializedString("title");
+        private static final SerializableString BODY = new SerializedString("body");
+
+        public Serializer() {
+            super(PostDataColumns.class);
+        }
+
+        @Override
+        public void serialize(PostDataColumns columns, JsonGenerator generator, SerializerProvider provider)
+                throws IOException {
+            // a UTF-8 text never has more chars than bytes, so the buffer is only grown for longer texts
+            char[] buffer = new char[256];
+            int[] length = new int[1];
+            generator.writeStartArray(columns.size);
+            for (int i = 0; i < columns.size; i++) {
+                generator.writeStartObject();
+                int userId = columns.getUserId(i);
+                if (userId != 0) {
+                    generator.writeFieldName(USERID);
+                    generator.writeNumber(userId);
+                }
+                if (columns.ids[i] != 0) {
+                    generator.writeFieldName(ID);
+                    generator.writeNumber(columns.ids[i]);
+                }
+                buffer = writeText(columns, generator, TITLE, 2 * i, buffer, length);
+                buffer = writeText(columns, generator, BODY, 2 * i + 1, buffer, length);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+
+        private static char[] writeText(
+                PostDataColumns columns,
+                JsonGenerator generator,
+                SerializableString name,
+                int column,
+                char[] buffer,
+                int[] length) throws IOException {
+            char[] decoded = columns.decode(column, buffer, length);
+            if (decoded == null) {
+                return buffer;
+            }
+            generator.writeFieldName(name);
+            generator.writeString(decoded, 0, length[0]);
+            return decoded;
+        }
+    }
+}
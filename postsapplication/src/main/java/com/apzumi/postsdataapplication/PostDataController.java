@@ -1,72 +1,330 @@
-package com.apzumi.postsdataapplication;
-
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.bind.annotation.*;
-
-@RestController
-public class PostDataController {
-
-    private PostDataService postDataService;
-
-    @Autowired
-    public PostDataController(PostDataService postDataService) {
-        this.postDataService = postDataService;
-    }
-
-    /**
-     * @return all the posts read from the API and ApiError status.
-     */
-    @GetMapping("/api/posts")
-    public PostDataJsonResponse getPostsFromApi() {
-        return postDataService.getPostsFromApi();
-    }
-
-    /**
-     *
-     * @param filterTitle - takes "ascending" or "descending" String,
-     *        can be skipped to preserve the order of the posts as in the database.
-     * @param skipUserId - true if you want to omit the userId from the database records.
-     * @return posts read from the database as a list with the optional title filter and skipped userId.
-     */
-    @GetMapping("/db/posts")
-    public PostDataJsonResponse getPostsFromDB(
-            @RequestParam(required = false, defaultValue = "") String filterTitle,
-            @RequestParam(required = false) boolean skipUserId) {
-        return postDataService.getPostsFromDb(filterTitle, skipUserId);
-    }
-
-    /**
-     * Used to populate empty database with the records from the API.
-     */
-    @GetMapping("/db/populate")
-    public ApiError savePost() { return postDataService.savePostsFromApiToDb();}
-
-    /**
-     * Used to update single post in the database.
-     * @param postData - PostData object to update.
-     * @return - ApiError status of the operation.
-     */
-    @PutMapping("/db/updatepost")
-    public ApiError updatePost(@RequestBody PostData postData) {
-        return postDataService.updatePost(postData);
-    }
-
-    /**
-     * Used to update all the database posts from the API.
-     * @return - ApiError status of the operation.
-     */
-    @GetMapping("/db/updateposts")
-    public ApiError updatePosts() {
-        return postDataService.updatePostsFromApiToDb();
-    }
-
-    /**
-     * Used to delete database post of the given id.
-     * @param id - id of the PostData record to delete.
-     * @return - ApiError status of the operation.
-     */
-    @DeleteMapping("/db/posts/{id}")
-    public ApiError deletePost(@PathVariable int id) {
-        return postDataService.deletePost(id);
-    }
-}
+package com.apzumi.postsdataapplication;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The blocking database and API calls are handed over to the dbExecutor and the upstreamExecutor,
+ * so the request threads are released while they run and a slow API doesn't hold up the database reads.
+ * Servlet variant of the routes, replaced by the ReactivePostDataController in the "reactive" profile,
+ * built with the "reactive" Maven profile.
+ */
+@Profile("!reactive")
+@RestController
+public class PostDataController {
+
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private PostDataService postDataService;
+    private PostDataChangeFeed changeFeed;
+    private Executor dbExecutor = Runnable::run;
+    private Executor upstreamExecutor = Runnable::run;
+    private PostDataExportLimit exportLimit;
+
+    @Autowired
+    public PostDataController(PostDataService postDataService) {
+        this.postDataService = postDataService;
+    }
+
+    @Autowired
+    public void setDbExecutor(@Qualifier("dbExecutor") Executor dbExecutor) {
+        this.dbExecutor = dbExecutor;
+    }
+
+    @Autowired
+    public void setChangeFeed(PostDataChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    @Autowired
+    public void setExportLimit(PostDataExportLimit exportLimit) {
+        this.exportLimit = exportLimit;
+    }
+
+    @Autowired
+    public void setUpstreamExecutor(@Qualifier("upstreamExecutor") Executor upstreamExecutor) {
+        this.upstreamExecutor = upstreamExecutor;
+    }
+
+    /**
+     * @return all the posts read from the API and ApiError status.
+     */
+    @GetMapping("/api/posts")
+    public CompletableFuture<PostDataJsonResponse> getPostsFromApi() {
+        return CompletableFuture.supplyAsync(postDataService::getPostsFromApi, upstreamExecutor);
+    }
+
+    /**
+     *
+     * @param query - optional filters bound from the request parameters:
+     *        filterTitle - takes "ascending" or "descending" String,
+     *        can be skipped to preserve the order of the posts as in the database,
+     *        userId - returns only the posts of the given user,
+     *        limit and offset - page of the results,
+     *        afterId and afterTitle - keyset pagination, returns the posts after the last post of the previous page.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @return posts read from the database as a list with the optional title filter and skipped userId.
+     */
+    @GetMapping("/db/posts")
+    public CompletableFuture<PostDataJsonResponse> getPostsFromDB(
+            PostDataQuery query,
+            @RequestParam(required = false) boolean skipUserId) {
+        return CompletableFuture.supplyAsync(() -> postDataService.getPostsFromDb(query, skipUserId), dbExecutor);
+    }
+
+    /**
+     * Unfiltered variant of /db/posts, served from the precomputed encoding of the listing.
+     * The listing is encoded as JSON, Smile or CBOR by the Accept header, JSON by default,
+     * and gzip compressed when the Accept-Encoding header allows it.
+     * Responds with 304 Not Modified when the If-None-Match header has the ETag of the current listing.
+     * @param filterTitle - takes "ascending" or "descending" String,
+     *        can be skipped to preserve the order of the posts as in the database.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @return posts read from the database as a list with the optional title filter and skipped userId.
+     */
+    @GetMapping(
+            value = "/db/posts",
+            params = {"!userId", "!limit", "!offset", "!afterId", "!afterTitle"},
+            produces = {MediaType.APPLICATION_JSON_VALUE, PostDataFormat.SMILE_VALUE, PostDataFormat.CBOR_VALUE})
+    public CompletableFuture<ResponseEntity<byte[]>> getSerializedPostsFromDB(
+            @RequestParam(required = false, defaultValue = "") String filterTitle,
+            @RequestParam(required = false) boolean skipUserId,
+            WebRequest webRequest) {
+        return CompletableFuture.supplyAsync(() -> {
+            SerializedPostDataResponse response;
+            try {
+                response = postDataService.getSerializedPostsFromDb(
+                        filterTitle,
+                        skipUserId,
+                        PostDataFormat.negotiate(webRequest.getHeader(HttpHeaders.ACCEPT)),
+                        WebUtils.acceptsGzip(webRequest.getHeader(HttpHeaders.ACCEPT_ENCODING)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (webRequest.checkNotModified(response.getETag())) {
+                return null;
+            }
+            return response.toResponseEntity();
+        }, dbExecutor);
+    }
+
+    /**
+     * Streams the posts from the database without loading them into memory, used for full table exports.
+     * The export holds a reader connection until it ends, so it runs on the exportExecutor, which caps the exports
+     * running at the same time, and an export over the PostDataExportLimit is answered 503.
+     * @param query - the same optional filters as for /db/posts.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @param format - "ndjson" for one post per line (default) or "json" for a single JSON array.
+     * @return posts read from the database, written to the response as they are read.
+     */
+    @GetMapping("/db/posts/stream")
+    public ResponseEntity<StreamingResponseBody> streamPostsFromDB(
+            PostDataQuery query,
+            @RequestParam(required = false) boolean skipUserId,
+            @RequestParam(required = false, defaultValue = "ndjson") String format,
+            WebRequest request) {
+        boolean ndjson = !"json".equals(format);
+        if (exportLimit != null) {
+            exportLimit.acquire(request);
+        }
+        return ResponseEntity.ok()
+                .contentType(ndjson ? APPLICATION_NDJSON : MediaType.APPLICATION_JSON)
+                .body(outputStream -> postDataService.streamPostsFromDb(query, skipUserId, ndjson, outputStream));
+    }
+
+    /**
+     * Server-sent events of the inserted, updated and deleted posts, named by the type of the change,
+     * with the change sequence number as the event id. A reconnecting EventSource resumes from its Last-Event-ID.
+     * A reset event means that the changes after the requested one are no longer kept and the posts have to be read again.
+     * @param after - sequence number of the last change seen, 0 for all the changes kept,
+     *        by default the changes from now on.
+     * @param lastEventId - Last-Event-ID header of a reconnecting client, takes precedence over after.
+     * @return - event stream open until the async request timeout, the client reconnects after it.
+     */
+    @GetMapping(value = "/db/posts/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter getChanges(
+            @RequestParam(required = false) Long after,
+            @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        SseEmitter emitter = new SseEmitter();
+        long afterSeq = lastEventId != null ? lastEventId : after != null ? after : -1;
+        try {
+            // the response is committed only by the first event, the comment sends the headers before any change
+            emitter.send(SseEmitter.event().comment("changes after " + afterSeq));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        PostDataChangeFeed.Subscription subscription = changeFeed.subscribe(
+                afterSeq,
+                change -> emitter.send(SseEmitter.event()
+                        .id(Long.toString(change.getSeq()))
+                        .name(change.getType())
+                        .data(change, MediaType.APPLICATION_JSON)),
+                emitter::completeWithError);
+        emitter.onCompletion(subscription::cancel);
+        emitter.onTimeout(subscription::cancel);
+        emitter.onError(e -> subscription.cancel());
+        return emitter;
+    }
+
+    /**
+     * Full-text search over the titles and bodies, ignoring the case and the diacritics.
+     * @param q - words which all have to be in the post.
+     * @param limit - page size, up to 100.
+     * @param offset - number of the best results to skip.
+     * @return - posts matching the words with highlighted snippets, the best matches first, and ApiError status.
+     */
+    @GetMapping("/db/posts/search")
+    public CompletableFuture<PostDataSearchResponse> searchPosts(
+            @RequestParam String q,
+            @RequestParam(required = false, defaultValue = "20") int limit,
+            @RequestParam(required = false, defaultValue = "0") int offset) {
+        return CompletableFuture.supplyAsync(() -> postDataService.searchPosts(q, limit, offset), dbExecutor);
+    }
+
+    /**
+     * @param userId - id of the user.
+     * @param query - optional title order and limit/offset or keyset pagination, as in /db/posts.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @return - posts of the user and ApiError status.
+     */
+    @GetMapping("/db/users/{userId}/posts")
+    public CompletableFuture<PostDataJsonResponse> getPostsOfUser(
+            @PathVariable int userId,
+            PostDataQuery query,
+            @RequestParam(required = false) boolean skipUserId) {
+        return CompletableFuture.supplyAsync(() -> postDataService.getPostsOfUser(userId, query, skipUserId), dbExecutor);
+    }
+
+    /**
+     * @return - number of the posts of every user, ordered by the userId, and ApiError status.
+     */
+    @GetMapping("/db/users/counts")
+    public CompletableFuture<PostDataUserCountsResponse> getUserPostCounts() {
+        return CompletableFuture.supplyAsync(postDataService::getUserPostCounts, dbExecutor);
+    }
+
+    /**
+     * @param limit - number of the users, up to 100.
+     * @return - users with the most posts, the user with the most posts first, and ApiError status.
+     */
+    @GetMapping("/db/users/top")
+    public CompletableFuture<PostDataUserCountsResponse> getTopUsers(
+            @RequestParam(required = false, defaultValue = "10") int limit) {
+        return CompletableFuture.supplyAsync(() -> postDataService.getTopUsers(limit), dbExecutor);
+    }
+
+    /**
+     * @param id - id of the PostData record.
+     * @return - the post of the given id and ApiError status, 404 when there is no post of the id.
+     */
+    @GetMapping("/db/posts/{id}")
+    public CompletableFuture<PostDataResponse> getPostFromDB(@PathVariable int id) {
+        return CompletableFuture.supplyAsync(() -> postDataService.getPostById(id), dbExecutor);
+    }
+
+    /**
+     * Used to populate empty database with the records from the API.
+     */
+    @GetMapping("/db/populate")
+    public CompletableFuture<ApiError> savePost() {
+        return CompletableFuture.supplyAsync(postDataService::savePostsFromApiToDb, upstreamExecutor);
+    }
+
+    /**
+     * @return - rows fetched and changed, elapsed time and ApiError status of the last sync from the API.
+     */
+    @GetMapping("/db/sync")
+    public SyncRunResult getLastSyncResult() {
+        return postDataService.getLastSyncResult();
+    }
+
+    /**
+     * @return - start, elapsed time, rows and ApiError status of the recent syncs from the API, the oldest first.
+     */
+    @GetMapping("/db/sync/history")
+    public List<SyncRunResult> getSyncHistory() {
+        return postDataService.getSyncHistory();
+    }
+
+    /**
+     * Used to update single post in the database.
+     * @param postData - PostData object to update.
+     * @return - ApiError status of the operation, 202 when the write-behind acks the writes on enqueue.
+     */
+    @PutMapping("/db/updatepost")
+    public CompletableFuture<ApiError> updatePost(@RequestBody PostData postData) {
+        return postDataService.updatePostAsync(postData, dbExecutor);
+    }
+
+    /**
+     * Used to update all the database posts from the API.
+     * @return - ApiError status of the operation.
+     */
+    @GetMapping("/db/updateposts")
+    public CompletableFuture<ApiError> updatePosts() {
+        return CompletableFuture.supplyAsync(postDataService::updatePostsFromApiToDb, upstreamExecutor);
+    }
+
+    /**
+     * Used to delete database post of the given id.
+     * @param id - id of the PostData record to delete.
+     * @return - ApiError status of the operation, 202 when the write-behind acks the writes on enqueue.
+     */
+    @DeleteMapping("/db/posts/{id}")
+    public CompletableFuture<ApiError> deletePost(@PathVariable int id) {
+        return postDataService.deletePostAsync(id, dbExecutor);
+    }
+
+    /**
+     * Used to update many posts at once, in a single transaction.
+     * @param postDataList - PostData objects to update, according to their ids.
+     * @return - rows changed by every post (1 updated, 0 no post of the id) and ApiError status of the operation.
+     */
+    @PutMapping("/db/posts/batch")
+    public CompletableFuture<PostDataBulkResponse> updatePosts(@RequestBody List<PostData> postDataList) {
+        return CompletableFuture.supplyAsync(() -> postDataService.updatePosts(postDataList), dbExecutor);
+    }
+
+    /**
+     * Used to delete many posts at once, in a single transaction.
+     * @param ids - ids of the PostData records to delete.
+     * @return - rows deleted for every id (1 deleted, 0 no post of the id) and ApiError status of the operation.
+     */
+    @DeleteMapping("/db/posts/batch")
+    public CompletableFuture<PostDataBulkResponse> deletePosts(@RequestBody List<Integer> ids) {
+        return CompletableFuture.supplyAsync(() -> postDataService.deletePosts(ids), dbExecutor);
+    }
+
+    /**
+     * @return - hit, miss and eviction counters of the posts cache.
+     */
+    @GetMapping("/db/cache/stats")
+    public PostDataCacheStats getCacheStats() {
+        return postDataService.getCacheStats();
+    }
+
+    /**
+     * @return - 503 with an ApiError status when the executor of the request is full.
+     */
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<ApiError> handleRejectedTask(TaskRejectedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(new ApiError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Too many requests in progress, try again later."));
+    }
+}
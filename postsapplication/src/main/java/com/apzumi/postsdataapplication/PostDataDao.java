@@ -1,150 +1,845 @@
-package com.apzumi.postsdataapplication;
-
-import lombok.extern.slf4j.Slf4j;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Repository;
-
-import java.sql.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-@Slf4j
-@Repository
-public class PostDataDao implements PostDataDaoInterface {
-
-    private final String DB_PATH = "jdbc:sqlite:" +
-            System.getProperty("user.dir") + "\\src\\main\\resources\\databases\\posts.db";
-    private final int QUERY_TIMEOUT = 20;
-    private final String USERID_COLUMN = "userId";
-    private final String ID_COLUMN = "id";
-    private final String TITLE_COLUMN = "title";
-    private final String BODY_COLUMN = "body";
-    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataDao.class);
-
-    public PostDataDao() {
-    }
-
-    /**
-     * Selects all the records from the local database
-     * @return posts read from the database as a PostDataJsonResponse with an ApiError status.
-     */
-    @Override
-    public PostDataJsonResponse getPostsFromDb() {
-        Connection connection;
-        ApiError status = new ApiError();
-        List<PostData> postDataList = new ArrayList<>();
-        try {
-            connection = DriverManager.getConnection(DB_PATH);
-            Statement statement = connection.createStatement();
-            statement.setQueryTimeout(QUERY_TIMEOUT);
-
-            ResultSet resultSet = statement.executeQuery("SELECT * FROM posts");
-            while (resultSet.next()) {
-                postDataList.add(new PostData(
-                        resultSet.getInt(USERID_COLUMN),
-                        resultSet.getInt(ID_COLUMN),
-                        resultSet.getString(TITLE_COLUMN),
-                        resultSet.getString(BODY_COLUMN)
-                ));
-            }
-        }
-        catch (SQLException e) {
-            LOGGER.info(e.getMessage());
-            status.code = e.getErrorCode();
-            status.message = e.getMessage();
-        }
-
-        return new PostDataJsonResponse(postDataList, status);
-    }
-
-    /**
-     * Saves PostData object as a record in a database.
-     * @param postData - PostData object to be saved in a database.
-     * @return - ApiError status of the operation.
-     */
-    @Override
-    public ApiError savePost(PostData postData) {
-        Connection connection;
-        ApiError status = new ApiError();
-        try {
-            connection = DriverManager.getConnection(DB_PATH);
-
-            PreparedStatement updatePostData = connection.prepareStatement("replace into posts values(?,?,?,?)");
-            updatePostData.setInt(1, postData.getUserId());
-            updatePostData.setInt(2, postData.getId());
-            updatePostData.setString(3, postData.getTitle());
-            updatePostData.setString(4, postData.getBody());
-            updatePostData.executeUpdate();
-        }
-        catch (SQLException e) {
-            LOGGER.info(e.getMessage());
-            status.code = e.getErrorCode();
-            status.message = e.getMessage();
-        }
-
-        return status;
-    }
-
-    /**
-     * Updates PostData record in a database, according to the PostData object id.
-     * @param postData - Object to be updated.
-     * @return - ApiError status of the operation.
-     */
-    @Override
-    public ApiError updatePost(PostData postData) {
-        Connection connection;
-        ApiError status = new ApiError();
-        try {
-            connection = DriverManager.getConnection(DB_PATH);
-
-            PreparedStatement updatePostData = connection.prepareStatement(
-                    "update posts SET " +
-                            "userId= ?, title = ?, body = ?" +
-                            "where id = ?"
-            );
-
-            updatePostData.setInt(1, postData.getUserId());
-            updatePostData.setString(2, postData.getTitle());
-            updatePostData.setString(3, postData.getBody());
-            updatePostData.setInt(4, postData.getId());
-            connection.close();
-            throw new SQLException();
-        }
-        catch (SQLException e) {
-            LOGGER.info(e.getMessage());
-            status.code = e.getErrorCode();
-            status.message = e.getMessage();
-        }
-
-        return (status);
-    }
-
-    /**
-     * Deletes PostData record from the database, according to the id.
-     * @param id - id of the record to be deleted.
-     * @return - ApiError status of the operation.
-     */
-    @Override
-    public ApiError deletePost(int id) {
-        Connection connection;
-        ApiError status = new ApiError();
-        try {
-            connection = DriverManager.getConnection(DB_PATH);
-
-            PreparedStatement updatePostData = connection.prepareStatement(
-                    "delete from posts where id = ?"
-            );
-            updatePostData.setInt(1, id);
-            updatePostData.executeUpdate();
-        }
-        catch (SQLException e) {
-            LOGGER.info(e.getMessage());
-            status.code = e.getErrorCode();
-            status.message = e.getMessage();
-        }
-
-        return status;
-    }
-}
+package com.apzumi.postsdataapplication;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+
+@Slf4j
+@Repository
+public class PostDataDao implements PostDataDaoInterface {
+
+    private final int QUERY_TIMEOUT = 20;
+    private final String USERID_COLUMN = "userId";
+    private final String ID_COLUMN = "id";
+    private final String TITLE_COLUMN = "title";
+    private final String BODY_COLUMN = "body";
+    // an upsert instead of "replace into", so the update triggers keep the search index in sync,
+    // and the posts which didn't change are not written at all
+    private final String UPSERT_POST = "insert into posts values(?,?,?,?) on conflict(id) do update set "
+            + "userId = excluded.userId, title = excluded.title, body = excluded.body "
+            + "where userId is not excluded.userId or title is not excluded.title or body is not excluded.body";
+    private final String UPDATE_POST = "update posts set userId = ?, title = ?, body = ? where id = ?";
+    private final String DELETE_POST = "delete from posts where id = ?";
+    // a post written locally loses its fingerprint, so the next sync sees it as changed and restores it from the API
+    private final String DELETE_FINGERPRINT = "delete from post_fingerprints where id = ?";
+    private final String SELECT_POST = "select userId, id, title, body from posts where id = ?";
+    private final String SEARCH_POSTS = "select posts.userId, posts.id, posts.title, posts.body, "
+            + "snippet(posts_fts, -1, '<b>', '</b>', '...', 16), posts_fts.rank "
+            + "from posts_fts join posts on posts.id = posts_fts.rowid "
+            + "where posts_fts match ? order by posts_fts.rank limit ? offset ?";
+    private final String SELECT_USER_POST_COUNTS = "select userId, posts from post_user_counts order by userId";
+    private final String SELECT_TOP_USERS = "select userId, posts from post_user_counts "
+            + "order by posts desc, userId limit ?";
+    // the post of a change is joined by its id, its columns are null when the change is a delete or the post is deleted
+    private final String SELECT_CHANGES = "select post_changes.seq, post_changes.type, post_changes.id, "
+            + "posts.id, posts.userId, posts.title, posts.body from post_changes "
+            + "left join posts on post_changes.type <> 'delete' and posts.id = post_changes.id "
+            + "where post_changes.seq > ? order by post_changes.seq limit ?";
+    private final String SELECT_LAST_CHANGE = "select seq from sqlite_sequence where name = 'post_changes'";
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataDao.class);
+
+    private final SqliteConnectionPool connectionPool;
+    private int batchSize = 1000;
+    private int fetchSize = 1000;
+    private final AtomicLong tableVersion = new AtomicLong();
+    private final AtomicLong localWriteVersion = new AtomicLong();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Autowired
+    public PostDataDao(SqliteConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    @Autowired
+    public void setBatchSize(@Value("${posts.datasource.batch-size:1000}") int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Autowired
+    public void setFetchSize(@Value("${posts.datasource.fetch-size:1000}") int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Selects the records matching the query from the local database.
+     * Filtering, ordering and pagination are done by SQLite using the indexes on userId and title.
+     * @param query - userId filter, title order and limit/offset or keyset pagination.
+     * @return posts read from the database as a PostDataJsonResponse with an ApiError status.
+     */
+    @Override
+    public PostDataJsonResponse getPostsFromDb(PostDataQuery query) {
+        PostDataColumns.Builder columns = new PostDataColumns.Builder();
+        ApiError status = selectPosts(query, "getPostsFromDb", resultSet -> columns.add(
+                resultSet.getInt(USERID_COLUMN),
+                resultSet.getInt(ID_COLUMN),
+                resultSet.getBytes(TITLE_COLUMN),
+                resultSet.getBytes(BODY_COLUMN)));
+
+        return new PostDataJsonResponse(columns.build(), status);
+    }
+
+    /**
+     * Reads the records matching the query with a forward-only cursor and passes them to the handler
+     * one at a time, so no more than a single row is held in memory.
+     * @param query - userId filter, title order and limit/offset or keyset pagination.
+     * @param handler - called for every selected post, in the query order.
+     * @return - ApiError status of the operation.
+     */
+    @Override
+    public ApiError forEachPost(PostDataQuery query, PostDataHandler handler) {
+        return selectPosts(query, "forEachPost", resultSet -> handler.handle(new PostData(
+                resultSet.getInt(USERID_COLUMN),
+                resultSet.getInt(ID_COLUMN),
+                resultSet.getString(TITLE_COLUMN),
+                resultSet.getString(BODY_COLUMN))));
+    }
+
+    /**
+     * Passes every selected row to the reader while the cursor is on it.
+     */
+    private ApiError selectPosts(PostDataQuery query, String method, RowReader reader) {
+        long start = System.nanoTime();
+        int rows = 0;
+        ApiError status = new ApiError();
+        List<Object> parameters = new ArrayList<>();
+        try (PooledConnection connection = connectionPool.getReadConnection()) {
+            PreparedStatement statement = connection.prepareStatement(selectPostsSql(query, parameters));
+            statement.setQueryTimeout(QUERY_TIMEOUT);
+            statement.setFetchSize(fetchSize);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    reader.read(resultSet);
+                    rows++;
+                }
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status.code = e.getErrorCode();
+            status.message = e.getMessage();
+        }
+        catch (IOException e) {
+            LOGGER.info(e.getMessage());
+            status.code = 500;
+            status.message = e.getMessage();
+        }
+
+        record(method, start, status, rows);
+        return status;
+    }
+
+    /**
+     * Builds the SELECT for the query shape and collects its parameters in the binding order.
+     * SQL depends only on which query fields are set, so each shape is prepared once per connection.
+     */
+    private String selectPostsSql(PostDataQuery query, List<Object> parameters) {
+        List<String> conditions = new ArrayList<>();
+        if (query.getUserId() != null) {
+            conditions.add("userId = ?");
+            parameters.add(query.getUserId());
+        }
+
+        String order;
+        if (query.isOrderedByTitle()) {
+            boolean ascending = PostDataQuery.ASCENDING.equals(query.getFilterTitle());
+            String comparison = ascending ? ">" : "<";
+            if (query.getAfterTitle() != null && query.getAfterId() != null) {
+                conditions.add("(title, id) " + comparison + " (?, ?)");
+                parameters.add(query.getAfterTitle());
+                parameters.add(query.getAfterId());
+            } else if (query.getAfterTitle() != null) {
+                conditions.add("title " + comparison + " ?");
+                parameters.add(query.getAfterTitle());
+            } else if (query.getAfterId() != null) {
+                conditions.add("(title, id) " + comparison + " ((SELECT title FROM posts WHERE id = ?), ?)");
+                parameters.add(query.getAfterId());
+                parameters.add(query.getAfterId());
+            }
+            order = ascending ? " ORDER BY title ASC, id ASC" : " ORDER BY title DESC, id DESC";
+        } else {
+            if (query.getAfterId() != null) {
+                conditions.add("id > ?");
+                parameters.add(query.getAfterId());
+            }
+            order = " ORDER BY id";
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT userId, id, title, body FROM posts");
+        if (!conditions.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        sql.append(order);
+        if (query.getLimit() != null || query.getOffset() != null) {
+            sql.append(" LIMIT ? OFFSET ?");
+            parameters.add(query.getLimit() != null && query.getLimit() >= 0 ? query.getLimit() : -1);
+            parameters.add(query.getOffset() != null && query.getOffset() >= 0 ? query.getOffset() : 0);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Saves PostData object as a record in a database.
+     * @param postData - PostData object to be saved in a database.
+     * @return - ApiError status of the operation.
+     */
+    @Override
+    public ApiError savePost(PostData postData) {
+        long start = System.nanoTime();
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getWriteConnection()) {
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+            PreparedStatement updatePostData = connection.prepareStatement(UPSERT_POST);
+            updatePostData.setInt(1, postData.getUserId());
+            updatePostData.setInt(2, postData.getId());
+            updatePostData.setString(3, postData.getTitle());
+            updatePostData.setString(4, postData.getBody());
+            updatePostData.executeUpdate();
+            deleteFingerprint(connection, postData.getId());
+            jdbcConnection.commit();
+            localWriteCommitted(connection);
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status.code = e.getErrorCode();
+            status.message = e.getMessage();
+        }
+
+        record("savePost", start, status, 1);
+        return status;
+    }
+
+    /**
+     * Saves all the PostData objects in a single transaction, using JDBC batches of batchSize rows.
+     * Every chunk runs under its own savepoint, so a failed chunk is rolled back
+     * without losing the chunks that succeeded.
+     * @param postDataList - PostData objects to be saved in a database.
+     * @return - status of every chunk and the overall ApiError status of the operation.
+     */
+    @Override
+    public PostDataBatchResponse saveAll(List<PostData> postDataList) {
+        long start = System.nanoTime();
+        ApiError status = new ApiError();
+        List<ChunkStatus> chunks = new ArrayList<>();
+        try (PooledConnection connection = connectionPool.getWriteConnection()) {
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+            PreparedStatement savePostData = connection.prepareStatement(UPSERT_POST);
+            PreparedStatement deleteFingerprint = connection.prepareStatement(DELETE_FINGERPRINT);
+
+            for (int from = 0; from < postDataList.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, postDataList.size());
+                ApiError chunkStatus = new ApiError();
+                Savepoint savepoint = jdbcConnection.setSavepoint();
+                try {
+                    for (PostData postData : postDataList.subList(from, to)) {
+                        savePostData.setInt(1, postData.getUserId());
+                        savePostData.setInt(2, postData.getId());
+                        savePostData.setString(3, postData.getTitle());
+                        savePostData.setString(4, postData.getBody());
+                        savePostData.addBatch();
+                        deleteFingerprint.setInt(1, postData.getId());
+                        deleteFingerprint.addBatch();
+                    }
+                    savePostData.executeBatch();
+                    deleteFingerprint.executeBatch();
+                    jdbcConnection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    LOGGER.info(e.getMessage());
+                    savePostData.clearBatch();
+                    deleteFingerprint.clearBatch();
+                    jdbcConnection.rollback(savepoint);
+                    chunkStatus = new ApiError(e.getErrorCode(), e.getMessage());
+                    if (status.code == 200) {
+                        status = chunkStatus;
+                    }
+                }
+                chunks.add(new ChunkStatus(from, to - from, chunkStatus));
+            }
+            jdbcConnection.commit();
+            localWriteCommitted(connection);
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+            for (ChunkStatus chunk : chunks) {
+                chunk.setApiError(status);
+            }
+        }
+
+        record("saveAll", start, status, postDataList.size());
+        return new PostDataBatchResponse(chunks, status);
+    }
+
+    /**
+     * Updates the posts of the given ids in a single transaction, using JDBC batches of batchSize rows.
+     * @param postDataList - PostData objects to be updated, according to their ids.
+     * @return - rows changed by every post and the ApiError status of the operation.
+     */
+    @Override
+    public PostDataBulkResponse updateAll(List<PostData> postDataList) {
+        return executeBulk("updateAll", postDataList.size(), (connection, results) -> {
+            executeBatches(connection.prepareStatement(UPDATE_POST), postDataList.size(), results, 0,
+                    (statement, index) -> bindUpdate(statement, postDataList.get(index)));
+            deleteFingerprints(connection, postDataList.size(), index -> postDataList.get(index).getId());
+        });
+    }
+
+    /**
+     * Deletes the posts of the given ids in a single transaction, using JDBC batches of batchSize rows.
+     * @param ids - ids of the records to be deleted.
+     * @return - rows deleted for every id and the ApiError status of the operation.
+     */
+    @Override
+    public PostDataBulkResponse deleteAll(List<Integer> ids) {
+        return executeBulk("deleteAll", ids.size(), (connection, results) -> {
+            executeBatches(connection.prepareStatement(DELETE_POST), ids.size(), results, 0,
+                    (statement, index) -> statement.setInt(1, ids.get(index)));
+            deleteFingerprints(connection, ids.size(), ids::get);
+        });
+    }
+
+    /**
+     * Updates and deletes the posts in a single transaction, the updates first.
+     * @param updates - PostData objects to be updated, according to their ids.
+     * @param deletes - ids of the records to be deleted.
+     * @return - rows changed by every update followed by the rows deleted for every id,
+     * and the ApiError status of the operation.
+     */
+    @Override
+    public PostDataBulkResponse writeAll(List<PostData> updates, List<Integer> deletes) {
+        return executeBulk("writeAll", updates.size() + deletes.size(), (connection, results) -> {
+            executeBatches(connection.prepareStatement(UPDATE_POST), updates.size(), results, 0,
+                    (statement, index) -> bindUpdate(statement, updates.get(index)));
+            executeBatches(connection.prepareStatement(DELETE_POST), deletes.size(), results, updates.size(),
+                    (statement, index) -> statement.setInt(1, deletes.get(index)));
+            deleteFingerprints(connection, updates.size(), index -> updates.get(index).getId());
+            deleteFingerprints(connection, deletes.size(), deletes::get);
+        });
+    }
+
+    private void deleteFingerprint(PooledConnection connection, int id) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(DELETE_FINGERPRINT);
+        statement.setInt(1, id);
+        statement.executeUpdate();
+    }
+
+    private void deleteFingerprints(PooledConnection connection, int items, IntUnaryOperator ids) throws SQLException {
+        executeBatches(connection.prepareStatement(DELETE_FINGERPRINT), items, new int[items], 0,
+                (statement, index) -> statement.setInt(1, ids.applyAsInt(index)));
+    }
+
+    private static void bindUpdate(PreparedStatement statement, PostData postData) throws SQLException {
+        statement.setInt(1, postData.getUserId());
+        statement.setString(2, postData.getTitle());
+        statement.setString(3, postData.getBody());
+        statement.setInt(4, postData.getId());
+    }
+
+    /**
+     * Runs the statements of the writer in one transaction, which is rolled back as a whole when any batch fails.
+     */
+    private PostDataBulkResponse executeBulk(String method, int items, BulkWriter writer) {
+        long start = System.nanoTime();
+        int[] results = new int[items];
+        int rows = 0;
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getWriteConnection()) {
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+            writer.write(connection, results);
+            jdbcConnection.commit();
+            localWriteCommitted(connection);
+            for (int result : results) {
+                rows += result;
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+            Arrays.fill(results, 0);
+        }
+
+        record(method, start, status, rows);
+        return new PostDataBulkResponse(results, rows, status);
+    }
+
+    /**
+     * Runs the statement for every item in JDBC batches of batchSize rows,
+     * keeping the rows changed by the items in the results from the given offset.
+     */
+    private void executeBatches(PreparedStatement statement, int items, int[] results, int offset, BulkBinder binder)
+            throws SQLException {
+        try {
+            for (int from = 0; from < items; from += batchSize) {
+                int to = Math.min(from + batchSize, items);
+                for (int index = from; index < to; index++) {
+                    binder.bind(statement, index);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                System.arraycopy(counts, 0, results, offset + from, counts.length);
+            }
+        } catch (SQLException e) {
+            statement.clearBatch();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the fingerprints of the posts stored by the previous sync.
+     * @return - fingerprints by post id, empty when they can't be read.
+     */
+    @Override
+    public Map<Integer, Long> getFingerprints() {
+        long start = System.nanoTime();
+        ApiError status = new ApiError();
+        Map<Integer, Long> fingerprints = new HashMap<>();
+        try (PooledConnection connection = connectionPool.getReadConnection()) {
+            PreparedStatement statement = connection.prepareStatement("SELECT id, fingerprint FROM post_fingerprints");
+            statement.setQueryTimeout(QUERY_TIMEOUT);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    fingerprints.put(resultSet.getInt(1), resultSet.getLong(2));
+                }
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+        }
+
+        record("getFingerprints", start, status, fingerprints.size());
+        return fingerprints;
+    }
+
+    /**
+     * Applies the sync diff and stores the new fingerprints in a single transaction.
+     * An empty diff doesn't touch the database.
+     * @param diff - posts to insert, update and delete with the fingerprints of the written ones.
+     * @return - ApiError status of the operation.
+     */
+    @Override
+    public ApiError applyDiff(PostDataDiff diff) {
+        ApiError status = new ApiError();
+        if (diff.isEmpty()) {
+            return status;
+        }
+        long start = System.nanoTime();
+        try (PooledConnection connection = connectionPool.getWriteConnection()) {
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+
+            PreparedStatement savePostData = connection.prepareStatement(UPSERT_POST);
+            PreparedStatement saveFingerprint = connection.prepareStatement(
+                    "replace into post_fingerprints values(?,?)");
+            for (List<PostData> postDataList : Arrays.asList(diff.getInserts(), diff.getUpdates())) {
+                for (PostData postData : postDataList) {
+                    savePostData.setInt(1, postData.getUserId());
+                    savePostData.setInt(2, postData.getId());
+                    savePostData.setString(3, postData.getTitle());
+                    savePostData.setString(4, postData.getBody());
+                    savePostData.addBatch();
+                    saveFingerprint.setInt(1, postData.getId());
+                    saveFingerprint.setLong(2, diff.getFingerprints().get(postData.getId()));
+                    saveFingerprint.addBatch();
+                }
+            }
+            savePostData.executeBatch();
+            saveFingerprint.executeBatch();
+
+            PreparedStatement deletePostData = connection.prepareStatement("delete from posts where id = ?");
+            PreparedStatement deleteFingerprint = connection.prepareStatement(DELETE_FINGERPRINT);
+            for (Integer id : diff.getDeletes()) {
+                deletePostData.setInt(1, id);
+                deletePostData.addBatch();
+                deleteFingerprint.setInt(1, id);
+                deleteFingerprint.addBatch();
+            }
+            deletePostData.executeBatch();
+            deleteFingerprint.executeBatch();
+
+            jdbcConnection.commit();
+            tableChanged(connection);
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status.code = e.getErrorCode();
+            status.message = e.getMessage();
+        }
+
+        record("applyDiff", start, status, diff.getChangedRows());
+        return status;
+    }
+
+    /**
+     * Reads a single post by its primary key.
+     * @param id - id of the post.
+     * @return - the post and ApiError status, 404 when there is no post of the id.
+     */
+    @Override
+    public PostDataResponse getPostById(int id) {
+        long start = System.nanoTime();
+        PostData postData = null;
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getReadConnection()) {
+            PreparedStatement selectPostData = connection.prepareStatement(SELECT_POST);
+            selectPostData.setQueryTimeout(QUERY_TIMEOUT);
+            selectPostData.setInt(1, id);
+            try (ResultSet resultSet = selectPostData.executeQuery()) {
+                if (resultSet.next()) {
+                    postData = new PostData(
+                            resultSet.getInt(USERID_COLUMN),
+                            resultSet.getInt(ID_COLUMN),
+                            resultSet.getString(TITLE_COLUMN),
+                            resultSet.getString(BODY_COLUMN)
+                    );
+                } else {
+                    status = notFound(id);
+                }
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+        }
+
+        record("getPostById", start, status, postData != null ? 1 : 0);
+        return new PostDataResponse(postData, status);
+    }
+
+    /**
+     * Searches the titles and bodies of the posts with the FTS5 index, which ignores the case and the diacritics,
+     * so "esacz" finds "ęśąćż" and the other way round. Matches in the title rank higher than in the body.
+     * @param text - words which all have to be in the post, the FTS5 query syntax is not interpreted.
+     * @param limit - maximum number of the results.
+     * @param offset - number of the best results to skip.
+     * @return - the best matches first, with a highlighted snippet and the bm25 rank of every post.
+     */
+    @Override
+    public PostDataSearchResponse searchPosts(String text, int limit, int offset) {
+        long start = System.nanoTime();
+        List<PostDataSearchHit> hits = new ArrayList<>();
+        ApiError status = new ApiError();
+        String matchQuery = matchQuery(text);
+        if (matchQuery.isEmpty()) {
+            return new PostDataSearchResponse(hits, new ApiError(400, "Search query is empty."));
+        }
+        try (PooledConnection connection = connectionPool.getReadConnection()) {
+            PreparedStatement searchPosts = connection.prepareStatement(SEARCH_POSTS);
+            searchPosts.setQueryTimeout(QUERY_TIMEOUT);
+            searchPosts.setString(1, matchQuery);
+            searchPosts.setInt(2, limit);
+            searchPosts.setInt(3, offset);
+            try (ResultSet resultSet = searchPosts.executeQuery()) {
+                while (resultSet.next()) {
+                    hits.add(new PostDataSearchHit(
+                            new PostData(
+                                    resultSet.getInt(USERID_COLUMN),
+                                    resultSet.getInt(ID_COLUMN),
+                                    resultSet.getString(TITLE_COLUMN),
+                                    resultSet.getString(BODY_COLUMN)),
+                            resultSet.getString(5),
+                            resultSet.getDouble(6)));
+                }
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+        }
+
+        record("searchPosts", start, status, hits.size());
+        return new PostDataSearchResponse(hits, status);
+    }
+
+    /**
+     * Reads the counts kept by the triggers of the posts table, one row per user.
+     * @return - number of the posts of every user, ordered by the userId.
+     */
+    @Override
+    public PostDataUserCountsResponse getUserPostCounts() {
+        return queryUserPostCounts("getUserPostCounts", SELECT_USER_POST_COUNTS, null);
+    }
+
+    /**
+     * @param limit - maximum number of the users.
+     * @return - users with the most posts, the user with the most posts first and the lower userId first on a tie.
+     */
+    @Override
+    public PostDataUserCountsResponse getTopUsers(int limit) {
+        return queryUserPostCounts("getTopUsers", SELECT_TOP_USERS, limit);
+    }
+
+    private PostDataUserCountsResponse queryUserPostCounts(String method, String sql, Integer limit) {
+        long start = System.nanoTime();
+        List<PostDataUserCount> userCounts = new ArrayList<>();
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getReadConnection()) {
+            PreparedStatement selectUserCounts = connection.prepareStatement(sql);
+            selectUserCounts.setQueryTimeout(QUERY_TIMEOUT);
+            if (limit != null) {
+                selectUserCounts.setInt(1, limit);
+            }
+            try (ResultSet resultSet = selectUserCounts.executeQuery()) {
+                while (resultSet.next()) {
+                    userCounts.add(new PostDataUserCount(resultSet.getInt(USERID_COLUMN), resultSet.getLong("posts")));
+                }
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+        }
+
+        record(method, start, status, userCounts.size());
+        return new PostDataUserCountsResponse(userCounts, status);
+    }
+
+    /**
+     * Quotes every word of the text, so the FTS5 operators and special characters are matched literally.
+     */
+    static String matchQuery(String text) {
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                if (matchQuery.length() > 0) {
+                    matchQuery.append(' ');
+                }
+                matchQuery.append('"').append(word.replace("\"", "\"\"")).append('"');
+            }
+        }
+        return matchQuery.toString();
+    }
+
+    /**
+     * Updates PostData record in a database, according to the PostData object id.
+     * @param postData - Object to be updated.
+     * @return - ApiError status of the operation, 404 when there is no post of the id.
+     */
+    @Override
+    public ApiError updatePost(PostData postData) {
+        long start = System.nanoTime();
+        int rows = 0;
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getWriteConnection()) {
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+            PreparedStatement updatePostData = connection.prepareStatement(UPDATE_POST);
+            updatePostData.setQueryTimeout(QUERY_TIMEOUT);
+            updatePostData.setInt(1, postData.getUserId());
+            updatePostData.setString(2, postData.getTitle());
+            updatePostData.setString(3, postData.getBody());
+            updatePostData.setInt(4, postData.getId());
+            rows = updatePostData.executeUpdate();
+            if (rows > 0) {
+                deleteFingerprint(connection, postData.getId());
+                jdbcConnection.commit();
+                localWriteCommitted(connection);
+            } else {
+                status = notFound(postData.getId());
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status.code = e.getErrorCode();
+            status.message = e.getMessage();
+        }
+
+        record("updatePost", start, status, rows);
+        return status;
+    }
+
+    /**
+     * Deletes PostData record from the database, according to the id.
+     * @param id - id of the record to be deleted.
+     * @return - ApiError status of the operation.
+     */
+    @Override
+    public ApiError deletePost(int id) {
+        long start = System.nanoTime();
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getWriteConnection()) {
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+            PreparedStatement updatePostData = connection.prepareStatement(
+                    "delete from posts where id = ?"
+            );
+            updatePostData.setInt(1, id);
+            updatePostData.executeUpdate();
+            deleteFingerprint(connection, id);
+            jdbcConnection.commit();
+            localWriteCommitted(connection);
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status.code = e.getErrorCode();
+            status.message = e.getMessage();
+        }
+
+        record("deletePost", start, status, 1);
+        return status;
+    }
+
+    /**
+     * Reads the changes of the posts logged by the triggers, which follow the given sequence number.
+     * The sequence numbers of the log have no gaps, so a first change other than afterSeq + 1 means that
+     * the changes in between were pruned, and the response is a reset with the changes which are still kept.
+     * @param afterSeq - sequence number of the last change seen, 0 for all the changes kept,
+     *        or -1 for no changes and the lastSeq to follow the changes from now on.
+     * @param limit - most changes to read.
+     * @return - changes in the order of their sequence numbers and the ApiError status of the query.
+     */
+    @Override
+    public PostDataChangesResponse getChanges(long afterSeq, int limit) {
+        long start = System.nanoTime();
+        List<PostDataChange> changes = new ArrayList<>();
+        long lastSeq = afterSeq;
+        boolean reset = false;
+        ApiError status = new ApiError();
+        try (PooledConnection connection = connectionPool.getReadConnection()) {
+            PreparedStatement selectChanges = connection.prepareStatement(SELECT_CHANGES);
+            selectChanges.setQueryTimeout(QUERY_TIMEOUT);
+            selectChanges.setLong(1, afterSeq);
+            selectChanges.setInt(2, afterSeq >= 0 ? limit : 0);
+            try (ResultSet resultSet = selectChanges.executeQuery()) {
+                while (resultSet.next()) {
+                    int id = resultSet.getInt(3);
+                    resultSet.getInt(4);
+                    PostData postData = resultSet.wasNull() ? null : new PostData(
+                            resultSet.getInt(5), id, resultSet.getString(6), resultSet.getString(7));
+                    changes.add(new PostDataChange(resultSet.getLong(1), resultSet.getString(2), id, postData));
+                }
+            }
+            if (!changes.isEmpty()) {
+                reset = changes.get(0).getSeq() != afterSeq + 1;
+                lastSeq = changes.get(changes.size() - 1).getSeq();
+            } else {
+                PreparedStatement selectLastChange = connection.prepareStatement(SELECT_LAST_CHANGE);
+                try (ResultSet resultSet = selectLastChange.executeQuery()) {
+                    lastSeq = resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+                reset = afterSeq >= 0 && lastSeq != afterSeq;
+            }
+        }
+        catch (SQLException e) {
+            LOGGER.info(e.getMessage());
+            status = new ApiError(e.getErrorCode(), e.getMessage());
+        }
+
+        record("getChanges", start, status, changes.size());
+        return new PostDataChangesResponse(changes, lastSeq, reset, status);
+    }
+
+    /**
+     * @param listener - called after every committed write, on the writing thread once it has given the writer
+     *        connection back, so it must not block.
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    private void localWriteCommitted(PooledConnection connection) {
+        localWriteVersion.incrementAndGet();
+        tableChanged(connection);
+    }
+
+    private void tableChanged(PooledConnection connection) {
+        tableVersion.incrementAndGet();
+        if (!changeListeners.isEmpty()) {
+            connection.afterRelease(() -> changeListeners.forEach(Runnable::run));
+        }
+    }
+
+    /**
+     * @return - version of the posts table, changed by every write made through this DAO.
+     */
+    @Override
+    public long getTableVersion() {
+        return tableVersion.get();
+    }
+
+    /**
+     * @return - version of the local writes, changed after every committed write made outside the sync,
+     * which drops the fingerprints of the written posts.
+     */
+    @Override
+    public long getLocalWriteVersion() {
+        return localWriteVersion.get();
+    }
+
+    private static ApiError notFound(int id) {
+        return new ApiError(404, "No post of id " + id);
+    }
+
+    /**
+     * Records the duration of a DAO method in posts.db.query and the rows it read or wrote in posts.db.rows,
+     * both tagged with the method and its outcome.
+     */
+    private void record(String method, long start, ApiError status, int rows) {
+        String outcome = status.code == 200 ? "success" : "error";
+        Timer.builder("posts.db.query")
+                .description("Duration of the posts DAO methods")
+                .tags("method", method, "outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("posts.db.rows")
+                .description("Rows read or written by the posts DAO methods")
+                .tags("method", method, "outcome", outcome)
+                .register(meterRegistry)
+                .record(rows);
+    }
+
+    private interface BulkBinder {
+
+        void bind(PreparedStatement statement, int index) throws SQLException;
+    }
+
+    private interface BulkWriter {
+
+        void write(PooledConnection connection, int[] results) throws SQLException;
+    }
+
+    private interface RowReader {
+
+        void read(ResultSet resultSet) throws SQLException, IOException;
+    }
+}
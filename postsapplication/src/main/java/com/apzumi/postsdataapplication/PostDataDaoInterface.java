@@ -1,9 +1,26 @@
-package com.apzumi.postsdataapplication;
-
-public interface PostDataDaoInterface {
-
-    PostDataJsonResponse getPostsFromDb();
-    ApiError savePost(PostData postData);
-    ApiError updatePost(PostData postData);
-    ApiError deletePost(int id);
-}
+package com.apzumi.postsdataapplication;
+
+import java.util.List;
+import java.util.Map;
+
+public interface PostDataDaoInterface {
+
+    PostDataJsonResponse getPostsFromDb(PostDataQuery query);
+    ApiError forEachPost(PostDataQuery query, PostDataHandler handler);
+    PostDataResponse getPostById(int id);
+    PostDataSearchResponse searchPosts(String text, int limit, int offset);
+    PostDataUserCountsResponse getUserPostCounts();
+    PostDataUserCountsResponse getTopUsers(int limit);
+    ApiError savePost(PostData postData);
+    PostDataBatchResponse saveAll(List<PostData> postDataList);
+    Map<Integer, Long> getFingerprints();
+    ApiError applyDiff(PostDataDiff diff);
+    ApiError updatePost(PostData postData);
+    ApiError deletePost(int id);
+    PostDataBulkResponse updateAll(List<PostData> postDataList);
+    PostDataBulkResponse deleteAll(List<Integer> ids);
+    PostDataBulkResponse writeAll(List<PostData> updates, List<Integer> deletes);
+    PostDataChangesResponse getChanges(long afterSeq, int limit);
+    long getTableVersion();
+    long getLocalWriteVersion();
+}
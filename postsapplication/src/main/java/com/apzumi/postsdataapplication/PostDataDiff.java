@@ -0,0 +1,120 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.Data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes needed to bring the synced posts in line with the upstream API,
+ * computed by comparing the fingerprints of the fetched posts with the ones stored by the previous sync.
+ */
+@Data
+public class PostDataDiff {
+
+    private final List<PostData> inserts = new ArrayList<>();
+    private final List<PostData> updates = new ArrayList<>();
+    private final List<Integer> deletes = new ArrayList<>();
+    /**
+     * Fingerprints of the inserted and updated posts, to be stored along with them.
+     */
+    private final Map<Integer, Long> fingerprints = new HashMap<>();
+
+    /**
+     * Compares the fetched posts with the stored fingerprints.
+     * Posts without a stored fingerprint are inserted, posts with a different one are updated
+     * and the stored ids missing from the fetched posts are deleted.
+     * @param fetched - posts fetched from the API.
+     * @param stored - fingerprints stored by the previous sync, by post id.
+     * @return - the diff, empty when nothing has changed upstream.
+     */
+    public static PostDataDiff compute(List<PostData> fetched, Map<Integer, Long> stored) {
+        Set<Integer> seen = new HashSet<>();
+        PostDataDiff diff = computeChanges(fetched, stored, seen);
+        diff.deletes.addAll(computeDeletes(stored, seen).deletes);
+        return diff;
+    }
+
+    /**
+     * Inserts and updates for a single batch of the fetched posts, used when the posts are streamed.
+     * @param batch - posts fetched from the API.
+     * @param stored - fingerprints stored by the previous sync, by post id.
+     * @param seen - ids of the posts fetched so far, the batch ids are added to it.
+     * @return - the diff without deletes, which are known only after the last batch.
+     */
+    public static PostDataDiff computeChanges(List<PostData> batch, Map<Integer, Long> stored, Set<Integer> seen) {
+        PostDataDiff diff = new PostDataDiff();
+        for (PostData postData : batch) {
+            if (!seen.add(postData.getId())) {
+                continue;
+            }
+            long fingerprint = fingerprint(postData);
+            Long storedFingerprint = stored.get(postData.getId());
+            if (storedFingerprint == null) {
+                diff.inserts.add(postData);
+                diff.fingerprints.put(postData.getId(), fingerprint);
+            } else if (storedFingerprint != fingerprint) {
+                diff.updates.add(postData);
+                diff.fingerprints.put(postData.getId(), fingerprint);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @param stored - fingerprints stored by the previous sync, by post id.
+     * @param seen - ids of all the fetched posts.
+     * @return - the diff deleting the stored posts which weren't fetched.
+     */
+    public static PostDataDiff computeDeletes(Map<Integer, Long> stored, Set<Integer> seen) {
+        PostDataDiff diff = new PostDataDiff();
+        for (Integer id : stored.keySet()) {
+            if (!seen.contains(id)) {
+                diff.deletes.add(id);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return - first 8 bytes of the SHA-256 of the post's userId, title and body.
+     */
+    public static long fingerprint(PostData postData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(4).putInt(postData.getUserId()).array());
+            update(digest, postData.getTitle());
+            update(digest, postData.getBody());
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value == null) {
+            digest.update((byte) 0);
+        } else {
+            digest.update((byte) 1);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+    }
+
+    public boolean isEmpty() {
+        return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+    }
+
+    public int getChangedRows() {
+        return inserts.size() + updates.size() + deletes.size();
+    }
+}
@@ -0,0 +1,55 @@
+package com.apzumi.postsdataapplication;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the streaming exports running on the exportExecutor or waiting for it at posts.executor.export.pool-size
+ * plus posts.executor.export.queue-capacity. An export over the cap is rejected on the request thread,
+ * before its async processing starts. Spring MVC dispatches a task rejected by the executor of the async
+ * processing as well as rethrowing the rejection, so the response would be written twice.
+ * The permit of an export is released when its async processing completes, whether it ended, failed or timed out.
+ */
+@Component
+public class PostDataExportLimit implements CallableProcessingInterceptor {
+
+    private static final String PERMIT_ATTRIBUTE = PostDataExportLimit.class.getName() + ".permit";
+
+    private final Semaphore permits;
+
+    @Autowired
+    public PostDataExportLimit(
+            @Value("${posts.executor.export.pool-size:2}") int poolSize,
+            @Value("${posts.executor.export.queue-capacity:10}") int queueCapacity) {
+        this.permits = new Semaphore(poolSize + queueCapacity);
+    }
+
+    /**
+     * Takes a permit for the export of the request.
+     * @param request - request of the export, holding the permit until its async processing completes.
+     * @throws TaskRejectedException - when the exports are over the cap, answered 503.
+     */
+    public void acquire(WebRequest request) {
+        if (!permits.tryAcquire()) {
+            throw new TaskRejectedException("Too many exports in progress.");
+        }
+        request.setAttribute(PERMIT_ATTRIBUTE, Boolean.TRUE, RequestAttributes.SCOPE_REQUEST);
+    }
+
+    @Override
+    public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+        if (request.getAttribute(PERMIT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) != null) {
+            request.removeAttribute(PERMIT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            permits.release();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches the posts of every API source, one source after another.
+ * With a page size, a source is read in pages requested with the page query, up to concurrency pages at a time,
+ * until a page comes back empty. The pages are handed over in order, each one as soon as
+ * it and all the pages before it are read, while the next ones are still being fetched.
+ * A source returning fewer posts than the page size in a page which isn't its last one caps the page size,
+ * so the posts between its pages are never read and the fetch is not complete. When only the first page
+ * is short, the posts right after it are requested to tell a small source from a capped one,
+ * which a query without the {start} variable can't do, such a source is taken as complete.
+ * Without a page size, every source is a single request decoded as a stream in batches.
+ */
+public class PostDataFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataFetcher.class);
+
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+    private final Executor executor;
+    private final List<String> urls;
+    private final int pageSize;
+    private final String pageQuery;
+    private final int concurrency;
+    private final int batchSize;
+    private boolean complete;
+
+    /**
+     * @param executor - runs the page requests, Runnable::run fetches the pages one by one on the calling thread.
+     * @param urls - addresses of the sources.
+     * @param pageSize - posts in a page, 0 to read every source in a single request.
+     * @param pageQuery - query of a page, with the {start}, {limit} and {page} variables, the first page is 1.
+     * @param concurrency - most page requests in flight.
+     * @param batchSize - posts in a batch of a source read in a single request.
+     */
+    public PostDataFetcher(
+            RestTemplate restTemplate,
+            ObjectMapper objectMapper,
+            Executor executor,
+            List<String> urls,
+            int pageSize,
+            String pageQuery,
+            int concurrency,
+            int batchSize) {
+        this.restTemplate = restTemplate;
+        this.objectMapper = objectMapper;
+        this.executor = executor;
+        this.urls = urls;
+        this.pageSize = pageSize;
+        this.pageQuery = pageQuery;
+        this.concurrency = Math.max(1, concurrency);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param handler - called with the pages, or the batches of the sources read in a single request, in order.
+     * @return - number of the posts fetched.
+     */
+    public int fetch(PostDataBatchHandler handler) throws IOException {
+        complete = true;
+        Semaphore permits = new Semaphore(concurrency);
+        int count = 0;
+        for (String url : urls) {
+            count += pageSize > 0 ? fetchPages(url, permits, handler) : fetchSource(url, handler);
+        }
+        return count;
+    }
+
+    /**
+     * @return - false when the last fetch found a source capping the page size, so some of its posts weren't read.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private int fetchSource(String url, PostDataBatchHandler handler) {
+        Integer count = restTemplate.execute(url, HttpMethod.GET, null,
+                response -> new PostDataStreamReader(objectMapper, batchSize).read(response.getBody(), handler));
+        return count != null ? count : 0;
+    }
+
+    private int fetchPages(String url, Semaphore permits, PostDataBatchHandler handler) throws IOException {
+        Deque<CompletableFuture<List<PostData>>> pages = new ArrayDeque<>();
+        int count = 0;
+        int nextPage = 0;
+        int previousSize = pageSize;
+        try {
+            while (pages.size() < concurrency) {
+                pages.addLast(fetchPage(url, nextPage * pageSize, nextPage++, permits));
+            }
+            while (!pages.isEmpty()) {
+                List<PostData> page = join(pages.removeFirst());
+                if (page.isEmpty()) {
+                    if (count > 0 && count < pageSize && pageQuery.contains("{start}")
+                            && !join(fetchPage(url, count, 1, permits)).isEmpty()) {
+                        capped(url, count);
+                    }
+                    break;
+                }
+                if (previousSize < pageSize) {
+                    capped(url, previousSize);
+                }
+                count += page.size();
+                previousSize = page.size();
+                handler.handle(page);
+                pages.addLast(fetchPage(url, nextPage * pageSize, nextPage++, permits));
+            }
+        } finally {
+            // pages requested past the end of the source, or after a failed one, are not waited for,
+            // they keep their permits until their requests end, so the next source never exceeds the concurrency
+            pages.forEach(page -> page.cancel(false));
+        }
+        return count;
+    }
+
+    private void capped(String url, int cappedSize) {
+        if (complete) {
+            LOGGER.info(url + " returned " + cappedSize + " posts in a page of " + pageSize
+                    + ", posts.api.page-size should be at most " + cappedSize + ", the posts missing upstream are not deleted.");
+        }
+        complete = false;
+    }
+
+    private CompletableFuture<List<PostData>> fetchPage(String url, int start, int page, Semaphore permits) {
+        URI uri = UriComponentsBuilder.fromUriString(url)
+                .query(pageQuery)
+                .buildAndExpand(Map.of("start", start, "limit", pageSize, "page", page + 1))
+                .encode()
+                .toUri();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestClientException("Interrupted before the request of the page " + uri, e);
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return restTemplate.execute(uri, HttpMethod.GET, null, response -> {
+                        PostData[] postDataArray = objectMapper.readValue(response.getBody(), PostData[].class);
+                        return postDataArray != null ? Arrays.asList(postDataArray) : Collections.<PostData>emptyList();
+                    });
+                } finally {
+                    permits.release();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw new RestClientException("Request of the page " + uri + " rejected: " + e.getMessage(), e);
+        }
+    }
+
+    private static List<PostData> join(CompletableFuture<List<PostData>> page) {
+        try {
+            List<PostData> postDataList = page.join();
+            return postDataList != null ? postDataList : Collections.emptyList();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.MediaType;
+import org.springframework.util.StringUtils;
+
+import java.util.List;
+
+/**
+ * Encodings of the responses, chosen by the Accept header.
+ * Smile and CBOR are binary encodings of the same objects as the JSON, smaller and faster to write and to parse.
+ * JSON is the default, also when the Accept header allows any type.
+ */
+public enum PostDataFormat {
+
+    JSON(MediaType.APPLICATION_JSON, new ObjectMapper()),
+    SMILE(MediaType.parseMediaType(PostDataFormat.SMILE_VALUE), new ObjectMapper(new SmileFactory())),
+    CBOR(MediaType.parseMediaType(PostDataFormat.CBOR_VALUE), new ObjectMapper(new CBORFactory()));
+
+    public static final String SMILE_VALUE = "application/x-jackson-smile";
+    public static final String CBOR_VALUE = "application/cbor";
+
+    private final MediaType mediaType;
+    private final ObjectMapper objectMapper;
+
+    PostDataFormat(MediaType mediaType, ObjectMapper objectMapper) {
+        this.mediaType = mediaType;
+        this.objectMapper = objectMapper;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * @param accept - value of the Accept header, may be null.
+     * @return - the format of the most preferred accepted type, JSON when none of the formats is accepted.
+     */
+    public static PostDataFormat negotiate(String accept) {
+        if (!StringUtils.hasText(accept)) {
+            return JSON;
+        }
+        List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            for (PostDataFormat format : values()) {
+                if (mediaType.includes(format.mediaType) && mediaType.getQualityValue() > 0) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+}
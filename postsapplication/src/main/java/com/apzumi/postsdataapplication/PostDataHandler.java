@@ -0,0 +1,12 @@
+package com.apzumi.postsdataapplication;
+
+import java.io.IOException;
+
+/**
+ * Receives the posts one by one while they are read from the database cursor.
+ */
+@FunctionalInterface
+public interface PostDataHandler {
+
+    void handle(PostData postData) throws IOException;
+}
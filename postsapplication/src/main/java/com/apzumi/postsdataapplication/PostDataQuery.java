@@ -0,0 +1,56 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Shape of the /db/posts query, translated by the DAO into SQL.
+ * All the fields are optional, an empty query selects all the posts in the database order.
+ */
+@Data
+@NoArgsConstructor
+public class PostDataQuery {
+
+    public static final String ASCENDING = "ascending";
+    public static final String DESCENDING = "descending";
+
+    /**
+     * "ascending" or "descending" to order the posts by title, anything else keeps the database (id) order.
+     */
+    private String filterTitle = "";
+    /**
+     * Selects only the posts of the given user.
+     */
+    private Integer userId;
+    /**
+     * Maximum number of the posts to return.
+     */
+    private Integer limit;
+    /**
+     * Number of the posts to skip.
+     */
+    private Integer offset;
+    /**
+     * Keyset pagination: returns only the posts after the post of the given id in the query order.
+     */
+    private Integer afterId;
+    /**
+     * Keyset pagination for the title order: title of the last post of the previous page.
+     */
+    private String afterTitle;
+
+    public boolean isOrderedByTitle() {
+        return ASCENDING.equals(filterTitle) || DESCENDING.equals(filterTitle);
+    }
+
+    public PostDataQuery copy() {
+        PostDataQuery copy = new PostDataQuery();
+        copy.setFilterTitle(filterTitle);
+        copy.setUserId(userId);
+        copy.setLimit(limit);
+        copy.setOffset(offset);
+        copy.setAfterId(afterId);
+        copy.setAfterTitle(afterTitle);
+        return copy;
+    }
+}
@@ -0,0 +1,15 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Single post with the ApiError status of the lookup, postData is null when there is no post of the id.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataResponse {
+
+    private PostData postData;
+    private ApiError apiError;
+}
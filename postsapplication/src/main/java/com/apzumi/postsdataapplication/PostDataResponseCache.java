@@ -0,0 +1,121 @@
+package com.apzumi.postsdataapplication;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the encoded responses of the unfiltered post listing, one per variant
+ * (database, ascending or descending order, with or without userId, format and compression).
+ * A response is encoded again only after the posts table version has changed.
+ * The listing is compressed here once per table version rather than by the server on every request.
+ */
+@Component
+public class PostDataResponseCache {
+
+    private final PostDataDaoInterface postDataDao;
+    private final int maxBytes;
+    private final Map<String, CachedResponse> responses = new ConcurrentHashMap<>();
+    private long compressionMinSize = 2048;
+
+    @Autowired
+    public PostDataResponseCache(
+            PostDataDaoInterface postDataDao,
+            @Value("${posts.response-cache.max-bytes:16777216}") int maxBytes) {
+        this.postDataDao = postDataDao;
+        this.maxBytes = maxBytes;
+    }
+
+    @Autowired
+    public void setCompressionMinSize(@Value("${server.compression.min-response-size:2KB}") DataSize compressionMinSize) {
+        this.compressionMinSize = compressionMinSize.toBytes();
+    }
+
+    /**
+     * Returns the encoded response of the variant, encoding it with the encoder when the table has changed.
+     * Responses larger than maxBytes are encoded on every call and not kept.
+     * @param filterTitle - "ascending", "descending" or anything else for the database order.
+     * @param skipUserId - true for the variant without userId.
+     * @param format - format the encoder writes.
+     * @param gzip - true when the client accepts gzip, the body is compressed from server.compression.min-response-size.
+     * @param encoder - encodes the current response of the variant.
+     * @return - encoded response with its ETag, content type and content encoding.
+     */
+    public SerializedPostDataResponse get(
+            String filterTitle,
+            boolean skipUserId,
+            PostDataFormat format,
+            boolean gzip,
+            Encoder encoder) throws IOException {
+        String variant = variant(filterTitle, skipUserId) + ":" + format + ":" + gzip;
+        CachedResponse cached = responses.get(variant);
+        long version = postDataDao.getTableVersion();
+        if (cached != null && cached.version == version) {
+            return cached.response;
+        }
+
+        synchronized (this) {
+            cached = responses.get(variant);
+            version = postDataDao.getTableVersion();
+            if (cached != null && cached.version == version) {
+                return cached.response;
+            }
+
+            byte[] body = encoder.encode();
+            String contentEncoding = null;
+            if (gzip && body.length >= compressionMinSize) {
+                body = gzip(body);
+                contentEncoding = "gzip";
+            }
+            SerializedPostDataResponse response = new SerializedPostDataResponse(
+                    body, "\"" + DigestUtils.md5DigestAsHex(body) + "\"", format.getMediaType(), contentEncoding);
+            // the table changed while encoding, the response may already be stale
+            if (body.length <= maxBytes && version == postDataDao.getTableVersion()) {
+                responses.put(variant, new CachedResponse(version, response));
+            } else {
+                responses.remove(variant);
+            }
+            return response;
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed, 8192)) {
+            gzipOutputStream.write(body);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String variant(String filterTitle, boolean skipUserId) {
+        String order = PostDataQuery.ASCENDING.equals(filterTitle) || PostDataQuery.DESCENDING.equals(filterTitle)
+                ? filterTitle
+                : "";
+        return "posts:" + order + ":" + skipUserId;
+    }
+
+    @FunctionalInterface
+    public interface Encoder {
+
+        byte[] encode() throws IOException;
+    }
+
+    private static class CachedResponse {
+
+        private final long version;
+        private final SerializedPostDataResponse response;
+
+        private CachedResponse(long version, SerializedPostDataResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.apzumi.postsdataapplication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Creates the schema of an empty database at startup and migrates the older ones to the current version.
+ * The version is kept in the user_version of the database file, so every migration runs only once.
+ */
+@Component
+public class PostDataSchemaInitializer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataSchemaInitializer.class);
+    static final int SCHEMA_VERSION = 4;
+
+    private final SqliteConnectionPool connectionPool;
+    private int changeRetention = 100000;
+
+    @Autowired
+    public PostDataSchemaInitializer(SqliteConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    @Autowired
+    public void setChangeRetention(@Value("${posts.changes.retention:100000}") int changeRetention) {
+        this.changeRetention = Math.max(1, changeRetention);
+    }
+
+    /**
+     * Runs the missing migrations in a single transaction, the application doesn't start when they fail.
+     */
+    @PostConstruct
+    public void initialize() {
+        try (PooledConnection connection = connectionPool.getWriteConnection();
+             Statement statement = connection.getConnection().createStatement()) {
+            int version = queryInt(statement, "PRAGMA user_version");
+            if (version >= SCHEMA_VERSION) {
+                setChangeRetention(statement);
+                return;
+            }
+            Connection jdbcConnection = connection.getConnection();
+            jdbcConnection.setAutoCommit(false);
+            if (version < 1) {
+                createSchema(statement);
+            }
+            if (version < 2) {
+                createSearchIndex(statement);
+            }
+            if (version < 3) {
+                createUserPostCounts(statement);
+            }
+            if (version < 4) {
+                createChangeLog(statement);
+            }
+            setChangeRetention(statement);
+            statement.executeUpdate("PRAGMA user_version = " + SCHEMA_VERSION);
+            jdbcConnection.commit();
+            LOGGER.info("Posts schema migrated from version {} to {}.", version, SCHEMA_VERSION);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Posts schema migration failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Version 1: posts keyed by the id, the indexes used by the /db/posts filters and orderings
+     * and the table of the sync fingerprints.
+     * A posts table without the primary key on the id is rebuilt, keeping the last row of every id.
+     */
+    private void createSchema(Statement statement) throws SQLException {
+        String createPosts = "CREATE TABLE %s (userId INTEGER, id INTEGER PRIMARY KEY, title TEXT, body TEXT)";
+        if (queryInt(statement, "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = 'posts'") == 0) {
+            statement.executeUpdate(String.format(createPosts, "posts"));
+        } else if (queryInt(statement, "SELECT count(*) FROM pragma_table_info('posts') WHERE name = 'id' AND pk = 1") == 0
+                || queryInt(statement, "SELECT count(*) FROM pragma_table_info('posts') WHERE pk > 0") != 1) {
+            statement.executeUpdate(String.format(createPosts, "posts_migrated"));
+            statement.executeUpdate("INSERT OR REPLACE INTO posts_migrated (userId, id, title, body) "
+                    + "SELECT userId, id, title, body FROM posts WHERE id IS NOT NULL ORDER BY rowid");
+            statement.executeUpdate("DROP TABLE posts");
+            statement.executeUpdate("ALTER TABLE posts_migrated RENAME TO posts");
+        }
+        statement.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS post_fingerprints (id INTEGER PRIMARY KEY, fingerprint INTEGER NOT NULL)");
+        statement.executeUpdate(
+                "CREATE INDEX IF NOT EXISTS posts_title_idx ON posts(title)");
+        statement.executeUpdate(
+                "CREATE INDEX IF NOT EXISTS posts_userId_idx ON posts(userId)");
+        statement.executeUpdate(
+                "CREATE INDEX IF NOT EXISTS posts_userId_title_idx ON posts(userId, title)");
+    }
+
+    /**
+     * Version 2: FTS5 index of the titles and bodies, which reads the text from the posts table
+     * and is kept in sync with it by the triggers, whatever writes the posts.
+     * Case and diacritics are folded, and the matches in the title weigh 10 times more than in the body.
+     */
+    private void createSearchIndex(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE VIRTUAL TABLE posts_fts USING fts5(title, body, "
+                + "content = 'posts', content_rowid = 'id', tokenize = 'unicode61 remove_diacritics 2')");
+        statement.executeUpdate("INSERT INTO posts_fts(posts_fts, rank) VALUES ('rank', 'bm25(10.0, 1.0)')");
+        statement.executeUpdate("CREATE TRIGGER posts_fts_insert AFTER INSERT ON posts BEGIN "
+                + "INSERT INTO posts_fts(rowid, title, body) VALUES (new.id, new.title, new.body); END");
+        statement.executeUpdate("CREATE TRIGGER posts_fts_delete AFTER DELETE ON posts BEGIN "
+                + "INSERT INTO posts_fts(posts_fts, rowid, title, body) VALUES ('delete', old.id, old.title, old.body); END");
+        statement.executeUpdate("CREATE TRIGGER posts_fts_update AFTER UPDATE OF id, title, body ON posts BEGIN "
+                + "INSERT INTO posts_fts(posts_fts, rowid, title, body) VALUES ('delete', old.id, old.title, old.body); "
+                + "INSERT INTO posts_fts(rowid, title, body) VALUES (new.id, new.title, new.body); END");
+        statement.executeUpdate("INSERT INTO posts_fts(posts_fts) VALUES ('rebuild')");
+    }
+
+    /**
+     * Version 3: number of the posts of every user, kept up to date by the triggers in the transaction of every write,
+     * so the per-user counts are read from a row per user instead of grouping all the posts.
+     */
+    private void createUserPostCounts(Statement statement) throws SQLException {
+        statement.executeUpdate(
+                "CREATE TABLE post_user_counts (userId INTEGER PRIMARY KEY, posts INTEGER NOT NULL)");
+        statement.executeUpdate(
+                "CREATE INDEX post_user_counts_posts_idx ON post_user_counts(posts DESC, userId)");
+        String increment = "INSERT INTO post_user_counts(userId, posts) VALUES (new.userId, 1) "
+                + "ON CONFLICT(userId) DO UPDATE SET posts = posts + 1; ";
+        String decrement = "UPDATE post_user_counts SET posts = posts - 1 WHERE userId = old.userId; "
+                + "DELETE FROM post_user_counts WHERE userId = old.userId AND posts = 0; ";
+        statement.executeUpdate("CREATE TRIGGER post_user_counts_insert AFTER INSERT ON posts "
+                + "WHEN new.userId IS NOT NULL BEGIN " + increment + "END");
+        statement.executeUpdate("CREATE TRIGGER post_user_counts_delete AFTER DELETE ON posts "
+                + "WHEN old.userId IS NOT NULL BEGIN " + decrement + "END");
+        statement.executeUpdate("CREATE TRIGGER post_user_counts_update_old AFTER UPDATE OF userId ON posts "
+                + "WHEN old.userId IS NOT new.userId AND old.userId IS NOT NULL BEGIN " + decrement + "END");
+        statement.executeUpdate("CREATE TRIGGER post_user_counts_update_new AFTER UPDATE OF userId ON posts "
+                + "WHEN old.userId IS NOT new.userId AND new.userId IS NOT NULL BEGIN " + increment + "END");
+        statement.executeUpdate("INSERT INTO post_user_counts(userId, posts) "
+                + "SELECT userId, count(*) FROM posts WHERE userId IS NOT NULL GROUP BY userId");
+    }
+
+    /**
+     * Version 4: log of the inserted, updated and deleted post ids, written by the triggers in the transaction of every write,
+     * numbered by an autoincrement sequence which never goes back or reuses a number, even after the oldest changes are pruned.
+     * Every 1000th change prunes the changes older than the last post_change_retention rows, set at every startup
+     * from posts.changes.retention.
+     */
+    private void createChangeLog(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE post_changes "
+                + "(seq INTEGER PRIMARY KEY AUTOINCREMENT, type TEXT NOT NULL, id INTEGER NOT NULL)");
+        statement.executeUpdate("CREATE TABLE post_change_retention (rows INTEGER NOT NULL)");
+        statement.executeUpdate("INSERT INTO post_change_retention(rows) VALUES (100000)");
+        statement.executeUpdate("CREATE TRIGGER post_changes_insert AFTER INSERT ON posts BEGIN "
+                + "INSERT INTO post_changes(type, id) VALUES ('insert', new.id); END");
+        statement.executeUpdate("CREATE TRIGGER post_changes_update AFTER UPDATE ON posts "
+                + "WHEN old.userId IS NOT new.userId OR old.title IS NOT new.title OR old.body IS NOT new.body BEGIN "
+                + "INSERT INTO post_changes(type, id) VALUES ('update', new.id); END");
+        statement.executeUpdate("CREATE TRIGGER post_changes_delete AFTER DELETE ON posts BEGIN "
+                + "INSERT INTO post_changes(type, id) VALUES ('delete', old.id); END");
+        statement.executeUpdate("CREATE TRIGGER post_changes_prune AFTER INSERT ON post_changes "
+                + "WHEN new.seq % 1000 = 0 BEGIN "
+                + "DELETE FROM post_changes WHERE seq <= new.seq - (SELECT rows FROM post_change_retention); END");
+    }
+
+    private void setChangeRetention(Statement statement) throws SQLException {
+        statement.executeUpdate("UPDATE post_change_retention SET rows = " + changeRetention);
+    }
+
+    private static int queryInt(Statement statement, String sql) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(sql)) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Post found by the full-text search, with the matching fragment of its title or body
+ * and the bm25 rank of the match, lower is better.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataSearchHit {
+
+    private PostData postData;
+    private String snippet;
+    private double rank;
+}
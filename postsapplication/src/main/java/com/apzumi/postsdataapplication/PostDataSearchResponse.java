@@ -0,0 +1,17 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Page of the full-text search results, the best matches first, with the ApiError status of the search.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataSearchResponse {
+
+    private List<PostDataSearchHit> hits;
+    private ApiError apiError;
+}
@@ -1,163 +1,803 @@
-package com.apzumi.postsdataapplication;
-
-import lombok.extern.slf4j.Slf4j;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.web.client.RestTemplateBuilder;
-import org.springframework.context.annotation.Bean;
-import org.springframework.http.ResponseEntity;
-import org.springframework.stereotype.Component;
-import org.springframework.web.client.HttpStatusCodeException;
-import org.springframework.web.client.RestTemplate;
-
-import java.time.Duration;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
-@Slf4j
-@Component
-public class PostDataService {
-
-    private final String URL = "https://jsonplaceholder.typicode.com/posts";
-    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataService.class);
-
-    private PostDataDao postDataDao;
-    private RestTemplate restTemplate;
-
-    /**
-     * Makes a get request to the API described in URL.
-     * @return all the posts read from the API.
-     */
-    public PostDataJsonResponse getPostsFromApi() {
-
-        List<PostData> postDataList = new ArrayList<>();
-        ApiError status = new ApiError();
-        try {
-            ResponseEntity<PostData[]> response = restTemplate.getForEntity(URL, PostData[].class);
-            postDataList = Arrays.asList(response.getBody());
-        } catch (HttpStatusCodeException e) {
-            LOGGER.info(e.getMessage());
-            status.code = e.getStatusCode().value();
-            status.message = e.getMessage();
-        }
-        return new PostDataJsonResponse(postDataList, status);
-    }
-
-    /**
-     * Selects all the records from the local database
-     * @param filterTitle - takes "ascending" or "descending" String,
-     *        can be skipped to preserve the order of the posts as in the database.
-     * @param skipUserId - true if you want to omit the userId from the database records.
-     * @return posts read from the database as a PostDataJsonResponse with the optional title filter,
-     * skipped userId and ApiError status.
-     */
-    public PostDataJsonResponse getPostsFromDb(
-            String filterTitle,
-            boolean skipUserId) {
-
-        PostDataJsonResponse postDataJsonResponse = postDataDao.getPostsFromDb();
-        List<PostData> postDataList = postDataJsonResponse.getPostDataList();
-
-        /**
-         * when the skipUserId flag is true, all the userId will be set to default value.
-         * this allows JsonInclude to ignore it's value when presenting data.
-         */
-        postDataList
-                .stream()
-                .forEach(postData -> {
-                    if(skipUserId) {postData.setUserId(0);}
-                });
-
-        postDataJsonResponse.setPostDataList(postDataList.stream()
-                    .sorted((PostData pd1, PostData pd2) -> {
-                        if (filterTitle.equals("ascending")) {
-                            return pd1.getTitle().compareTo(pd2.getTitle());
-                        } else if (filterTitle.equals("descending")) {
-                            return pd2.getTitle().compareTo(pd1.getTitle());
-                        } else
-                            return 0;
-                    })
-                    .collect(Collectors.toList()));
-
-        return(postDataJsonResponse);
-    }
-
-    /**
-     * Saves PostData object as a record in a database.
-     * @param postData - PostData object to be saved in a database.
-     * @return - ApiError status of the operation.
-     */
-    public ApiError savePost(PostData postData) {
-        return postDataDao.savePost(postData);
-    }
-
-    /**
-     * Saves all the PostData objects from the URL to a database.
-     * @return - ApiError status of the operation.
-     */
-    public ApiError savePostsFromApiToDb() {
-
-        PostDataJsonResponse postDataJsonResponse = getPostsFromApi();
-        if(postDataJsonResponse.getApiError().code == 200) {
-            for (PostData postData : postDataJsonResponse.getPostDataList()) {
-                postDataJsonResponse.setApiError(savePost(postData));
-            }
-        }
-
-        return postDataJsonResponse.getApiError();
-    }
-
-    /**
-     * Updates PostData record in a database, according to the PostData object id.
-     * @param postData - Object to be updated.
-     * @return - ApiError status of the operation.
-     */
-    public ApiError updatePost(PostData postData) {
-        return postDataDao.updatePost(postData);
-    }
-
-    /**
-     * Updates posts from the URL to a database. Does not add the new records.
-     * @return - ApiError status of the operation.
-     */
-    public ApiError updatePostsFromApiToDb() {
-
-        PostDataJsonResponse postDataJsonResponse = getPostsFromApi();
-        if(postDataJsonResponse.getApiError().code == 200) {
-            for (PostData postData : postDataJsonResponse.getPostDataList()) {
-                postDataJsonResponse.setApiError(updatePost(postData));
-            }
-        }
-
-        return postDataJsonResponse.getApiError();
-    }
-
-    /**
-     * Deletes PostData record from the database, according to the id.
-     * @param id - id of the record to be deleted.
-     * @return - ApiError status of the operation.
-     */
-    public ApiError deletePost(int id) { return postDataDao.deletePost(id);}
-
-    @Bean
-    public RestTemplate restTemplate(RestTemplateBuilder builder) {
-
-        return builder
-                .setConnectTimeout(Duration.ofMillis(3000))
-                .setReadTimeout(Duration.ofMillis(3000))
-                .build();
-    }
-
-    @Autowired
-    public void setRestTemplate(RestTemplate restTemplate) {
-        this.restTemplate = restTemplate;
-    }
-
-    @Autowired
-    public void setPostDataDao(PostDataDao postDataDao) {
-        this.postDataDao = postDataDao;
-    }
-}
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+@Slf4j
+@Component
+public class PostDataService {
+
+    private List<String> apiUrls = Collections.singletonList("https://jsonplaceholder.typicode.com/posts");
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataService.class);
+    static final int MAX_SEARCH_RESULTS = 100;
+    static final int MAX_TOP_USERS = 100;
+
+    private PostDataDaoInterface postDataDao;
+    private CachingPostDataDao postDataCache;
+    private PostDataResponseCache responseCache;
+    private final Deque<SyncRunResult> syncHistory = new ArrayDeque<>();
+    private int syncHistorySize = 100;
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private RestTemplate restTemplate;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private volatile ApiPayload lastPayload;
+    private volatile ApiValidators syncValidators;
+    // version of the local writes read before the request answered with the syncValidators, guarded by the syncLock
+    private long syncLocalWriteVersion;
+    private long apiCacheTtl = 60000;
+    private int apiBatchSize = 1000;
+    private int apiPageSize = 0;
+    private String apiPageQuery = "_start={start}&_limit={limit}";
+    private int apiConcurrency = 4;
+    private Executor apiFetchExecutor = Runnable::run;
+    private int syncQueueCapacity = 4;
+    private Executor syncExecutor = PostDataService::startSyncStage;
+    private volatile PostDataSyncPipeline runningPipeline;
+    private PostDataWriteBehind writeBehind;
+
+    /**
+     * Makes a get request to the API at apiUrls, or fetches their pages in parallel when apiPageSize is set.
+     * The last good payload is kept in memory and returned without a request for apiCacheTtl milliseconds.
+     * @return all the posts read from the API.
+     */
+    public PostDataJsonResponse getPostsFromApi() {
+        return fetchPostsFromApi(true).getResponse();
+    }
+
+    /**
+     * Makes a conditional get request to the API at apiUrls.
+     * ETag and Last-Modified of the last good payload are sent as If-None-Match and If-Modified-Since,
+     * so when the API answers 304 Not Modified the payload is neither downloaded nor decoded again.
+     * Several sources or pages are fetched without the validators, the posts of an id already fetched are skipped.
+     * @param useCachedPayload - true to return the last good payload without a request while it's fresh.
+     * @return all the posts read from the API, with notModified set when they haven't changed.
+     */
+    public ApiFetchResult fetchPostsFromApi(boolean useCachedPayload) {
+
+        if (useCachedPayload) {
+            PostDataJsonResponse cachedResponse = getFreshApiPayload();
+            if (cachedResponse != null) {
+                return new ApiFetchResult(cachedResponse, false);
+            }
+        }
+
+        try {
+            if (!isSingleApiRequest()) {
+                List<PostData> postDataList = new ArrayList<>();
+                Set<Integer> seen = new HashSet<>();
+                apiFetcher().fetch(page -> {
+                    for (PostData postData : page) {
+                        if (seen.add(postData.getId())) {
+                            postDataList.add(postData);
+                        }
+                    }
+                });
+                return acceptApiPayload(HttpStatus.OK, new HttpHeaders(), postDataList);
+            }
+            HttpHeaders headers = new HttpHeaders();
+            addApiValidators(headers);
+            ResponseEntity<PostData[]> response = restTemplate.exchange(
+                    apiUrls.get(0), HttpMethod.GET, new HttpEntity<>(headers), PostData[].class);
+
+            return acceptApiPayload(
+                    response.getStatusCode(),
+                    response.getHeaders(),
+                    response.getBody() != null ? Arrays.asList(response.getBody()) : null);
+        } catch (HttpStatusCodeException e) {
+            LOGGER.info(e.getMessage());
+            return new ApiFetchResult(new PostDataJsonResponse(
+                    new ArrayList<>(), new ApiError(e.getStatusCode().value(), e.getMessage())), false);
+        } catch (IOException e) {
+            LOGGER.info(e.getMessage());
+            return new ApiFetchResult(new PostDataJsonResponse(
+                    new ArrayList<>(), new ApiError(500, e.getMessage())), false);
+        }
+    }
+
+    /**
+     * @return - true when the posts are read from a single source in a single request,
+     * which is the only case the API validators are used in.
+     */
+    public boolean isSingleApiRequest() {
+        return apiUrls.size() == 1 && apiPageSize <= 0;
+    }
+
+    /**
+     * @return - addresses of the API sources.
+     */
+    public List<String> getApiUrls() {
+        return apiUrls;
+    }
+
+    private PostDataFetcher apiFetcher() {
+        return new PostDataFetcher(restTemplate, objectMapper, apiFetchExecutor,
+                apiUrls, apiPageSize, apiPageQuery, apiConcurrency, apiBatchSize);
+    }
+
+    /**
+     * @return - the last good payload of the API while it is younger than apiCacheTtl, null otherwise.
+     */
+    public PostDataJsonResponse getFreshApiPayload() {
+        ApiPayload payload = lastPayload;
+        if (payload != null && System.currentTimeMillis() - payload.fetchedAt < apiCacheTtl) {
+            return new PostDataJsonResponse(payload.postDataList, new ApiError());
+        }
+        return null;
+    }
+
+    /**
+     * Adds ETag and Last-Modified of the last good payload as If-None-Match and If-Modified-Since.
+     * @param headers - headers of the request to the API.
+     */
+    public void addApiValidators(HttpHeaders headers) {
+        ApiPayload payload = lastPayload;
+        if (payload != null) {
+            payload.validators.addTo(headers);
+        }
+    }
+
+    /**
+     * Keeps a successful response of the API as the last good payload.
+     * 304 Not Modified refreshes the kept payload and returns it instead.
+     * @param statusCode - status of the response.
+     * @param headers - headers of the response with its ETag and Last-Modified.
+     * @param postDataList - posts decoded from the body of the response.
+     * @return - posts of the payload, with notModified set when they haven't changed.
+     */
+    public ApiFetchResult acceptApiPayload(HttpStatus statusCode, HttpHeaders headers, List<PostData> postDataList) {
+        ApiPayload payload = lastPayload;
+        if (statusCode == HttpStatus.NOT_MODIFIED && payload != null) {
+            lastPayload = new ApiPayload(payload.postDataList, payload.validators, System.currentTimeMillis());
+            return new ApiFetchResult(new PostDataJsonResponse(payload.postDataList, new ApiError()), true);
+        }
+        List<PostData> payloadList = postDataList != null
+                ? Collections.unmodifiableList(postDataList)
+                : Collections.emptyList();
+        lastPayload = new ApiPayload(
+                payloadList,
+                new ApiValidators(headers.getETag(), headers.getLastModified()),
+                System.currentTimeMillis());
+        return new ApiFetchResult(new PostDataJsonResponse(payloadList, new ApiError()), false);
+    }
+
+    /**
+     * Selects the records matching the query from the local database.
+     * @param query - optional title order, userId filter and limit/offset or keyset pagination.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @return posts read from the database as a PostDataJsonResponse with the optional title filter,
+     * skipped userId and ApiError status.
+     */
+    public PostDataJsonResponse getPostsFromDb(
+            PostDataQuery query,
+            boolean skipUserId) {
+
+        PostDataJsonResponse postDataJsonResponse = postDataDao.getPostsFromDb(query);
+
+        /**
+         * when the skipUserId flag is true, all the userId will be set to default value.
+         * this allows JsonInclude to ignore it's value when presenting data.
+         * posts may be shared with the cache, so they are copied instead of modified.
+         */
+        if (skipUserId && postDataJsonResponse.getPostDataList() instanceof PostDataColumns) {
+            postDataJsonResponse.setPostDataList(((PostDataColumns) postDataJsonResponse.getPostDataList()).withoutUserIds());
+        } else if (skipUserId) {
+            postDataJsonResponse.setPostDataList(postDataJsonResponse.getPostDataList()
+                    .stream()
+                    .map(postData -> new PostData(0, postData.getId(), postData.getTitle(), postData.getBody()))
+                    .collect(Collectors.toList()));
+        }
+
+        return(postDataJsonResponse);
+    }
+
+    /**
+     * Returns the unfiltered post listing already encoded in the given format.
+     * Encoded listings are kept by the PostDataResponseCache until the posts table changes.
+     * @param filterTitle - takes "ascending" or "descending" String,
+     *        anything else preserves the order of the posts as in the database.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @param format - JSON, Smile or CBOR.
+     * @param gzip - true when the client accepts a gzip compressed body.
+     * @return - encoded PostDataJsonResponse with its ETag.
+     */
+    public SerializedPostDataResponse getSerializedPostsFromDb(
+            String filterTitle,
+            boolean skipUserId,
+            PostDataFormat format,
+            boolean gzip) throws IOException {
+
+        PostDataQuery query = new PostDataQuery();
+        query.setFilterTitle(filterTitle);
+        ObjectMapper formatMapper = format == PostDataFormat.JSON ? objectMapper : format.getObjectMapper();
+        return responseCache.get(filterTitle, skipUserId, format, gzip,
+                () -> formatMapper.writeValueAsBytes(getPostsFromDb(query, skipUserId)));
+    }
+
+    /**
+     * Writes the records matching the query straight from the database cursor to the output stream,
+     * so the memory use doesn't depend on the number of the records.
+     * A failed write, usually a client gone, ends the stream with a 500 status instead of an exception,
+     * and nothing more is written to the output stream, not even an error page. After the client is gone
+     * the servlet container may complete the response while the export still runs, and recycle it for another request.
+     * @param query - optional title order, userId filter and limit/offset or keyset pagination.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @param ndjson - true for one JSON object per line, false for a single JSON array.
+     * @param outputStream - stream the posts are written to.
+     * @return - ApiError status of the operation.
+     */
+    public ApiError streamPostsFromDb(
+            PostDataQuery query,
+            boolean skipUserId,
+            boolean ndjson,
+            OutputStream outputStream) {
+
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        ApiError status;
+        try {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+            generator.setRootValueSeparator(null);
+            if (!ndjson) {
+                generator.writeStartArray();
+            }
+            status = postDataDao.forEachPost(query, postData -> {
+                if (skipUserId) {
+                    postData.setUserId(0);
+                }
+                writer.writeValue(generator, postData);
+                if (ndjson) {
+                    generator.writeRaw('\n');
+                }
+            });
+            // the generator isn't closed after a failure, closing it would flush its buffer into the response
+            if (status.code == 200) {
+                if (!ndjson) {
+                    generator.writeEndArray();
+                }
+                generator.close();
+            }
+        } catch (IOException e) {
+            status = new ApiError(500, e.getMessage());
+        }
+        if (status.code != 200) {
+            LOGGER.info("Posts stream interrupted: " + status.message);
+        }
+        return status;
+    }
+
+    /**
+     * Saves PostData object as a record in a database.
+     * @param postData - PostData object to be saved in a database.
+     * @return - ApiError status of the operation.
+     */
+    public ApiError savePost(PostData postData) {
+        return postDataDao.savePost(postData);
+    }
+
+    /**
+     * Saves all the PostData objects from the API to a database.
+     * Only the posts changed since the previous sync are written.
+     * @return - ApiError status of the operation.
+     */
+    public ApiError savePostsFromApiToDb() {
+        return syncPostsFromApiToDb().getApiError();
+    }
+
+    /**
+     * Syncs the posts from the API to a database.
+     * The response is decoded as a stream, in batches of apiBatchSize posts. Fingerprints of every batch
+     * are compared with the ones stored by the previous sync, and only the new and changed posts are written,
+     * one transaction per batch. Posts missing upstream are deleted once the whole response has been read.
+     * Fetching, diffing and writing run as the stages of a PostDataSyncPipeline, connected by queues
+     * of posts.sync.queue-capacity batches, so the next batches are fetched while the previous ones are written.
+     * Every local write drops the fingerprint of its post, so the next sync restores the posts edited or deleted locally.
+     * When the API answers 304 Not Modified, the database isn't touched at all. The validators of the last response
+     * are sent only while no local write was committed since its sync, otherwise the 304 would skip the restore.
+     * Several sources or pages are fetched by the PostDataFetcher, and every page is written while the next ones
+     * are still being fetched. A post of an id fetched from an earlier source or page is skipped.
+     * When a source caps the page size, the fetched posts are written but nothing is deleted.
+     * Only one sync runs at a time, a sync requested while another one is running returns 409 right away.
+     * @return - rows fetched and changed, elapsed time and ApiError status of the sync.
+     */
+    public SyncRunResult syncPostsFromApiToDb() {
+        if (!syncLock.tryLock()) {
+            return new SyncRunResult(
+                    Instant.now(), 0, 0, 0, 0, 0, false, new ApiError(409, "Sync already running."));
+        }
+        try {
+            return runSync();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private SyncRunResult runSync() {
+
+        long start = System.nanoTime();
+        SyncRunResult result = new SyncRunResult(Instant.now(), 0, 0, 0, 0, 0, false, new ApiError());
+        long localWriteVersion = postDataDao.getLocalWriteVersion();
+        ApiValidators validators = syncLocalWriteVersion == localWriteVersion ? syncValidators : null;
+        try {
+            if (!isSingleApiRequest()) {
+                PostDataFetcher fetcher = apiFetcher();
+                ingestPostsFromApi(handler -> {
+                    fetcher.fetch(handler);
+                    return fetcher.isComplete();
+                }, result);
+            } else {
+                restTemplate.execute(apiUrls.get(0), HttpMethod.GET,
+                        request -> {
+                            if (validators != null) {
+                                validators.addTo(request.getHeaders());
+                            }
+                        },
+                        response -> {
+                            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && validators != null) {
+                                result.setUpstreamNotModified(true);
+                                return null;
+                            }
+                            ingestPostsFromApi(handler -> {
+                                new PostDataStreamReader(objectMapper, apiBatchSize).read(response.getBody(), handler);
+                                return true;
+                            }, result);
+                            syncValidators = new ApiValidators(
+                                    response.getHeaders().getETag(), response.getHeaders().getLastModified());
+                            syncLocalWriteVersion = localWriteVersion;
+                            return null;
+                        });
+            }
+        } catch (HttpStatusCodeException e) {
+            LOGGER.info(e.getMessage());
+            result.setApiError(new ApiError(e.getStatusCode().value(), e.getMessage()));
+        } catch (RestClientException | IOException e) {
+            LOGGER.info(e.getMessage());
+            if (result.getApiError().code == 200) {
+                result.setApiError(new ApiError(500, e.getMessage()));
+            }
+        }
+
+        result.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOGGER.info("Sync finished in " + result.getElapsedMillis() + " ms: "
+                + (result.isUpstreamNotModified() ? "not modified upstream, " : "")
+                + result.getRowsFetched() + " rows fetched, "
+                + result.getRowsChanged() + " rows changed, status " + result.getApiError().code);
+        recordSync(result);
+        synchronized (syncHistory) {
+            syncHistory.addLast(result);
+            while (syncHistory.size() > syncHistorySize) {
+                syncHistory.removeFirst();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Records the sync duration in posts.sync.duration and its rows in posts.sync.rows,
+     * tagged with the outcome ("success", "not_modified" or "error").
+     */
+    private void recordSync(SyncRunResult result) {
+        String outcome = result.getApiError().code != 200 ? "error"
+                : result.isUpstreamNotModified() ? "not_modified" : "success";
+        Timer.builder("posts.sync.duration")
+                .description("Duration of the syncs from the posts API to the database")
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(result.getElapsedMillis(), TimeUnit.MILLISECONDS);
+        Counter.builder("posts.sync.rows").tag("change", "fetched").register(meterRegistry)
+                .increment(result.getRowsFetched());
+        Counter.builder("posts.sync.rows").tag("change", "inserted").register(meterRegistry)
+                .increment(result.getRowsInserted());
+        Counter.builder("posts.sync.rows").tag("change", "updated").register(meterRegistry)
+                .increment(result.getRowsUpdated());
+        Counter.builder("posts.sync.rows").tag("change", "deleted").register(meterRegistry)
+                .increment(result.getRowsDeleted());
+    }
+
+    /**
+     * Decodes the posts from the response body and writes the changed ones batch by batch.
+     * Deletes are applied only after the whole body has been read, so a broken response never deletes anything,
+     * and only when the source read every post of the API.
+     */
+    private void ingestPostsFromApi(PostSource source, SyncRunResult result) throws IOException {
+        PostDataSyncPipeline pipeline = new PostDataSyncPipeline(
+                postDataDao, postDataDao.getFingerprints(), syncQueueCapacity, result, meterRegistry, syncExecutor);
+        runningPipeline = pipeline;
+        try {
+            pipeline.start();
+            pipeline.finish(source.fetch(pipeline));
+        } finally {
+            pipeline.abort();
+            runningPipeline = null;
+        }
+    }
+
+    /**
+     * @return - metrics of the last sync, null before the first one.
+     */
+    public SyncRunResult getLastSyncResult() {
+        synchronized (syncHistory) {
+            return syncHistory.peekLast();
+        }
+    }
+
+    /**
+     * @return - metrics of the last posts.sync.history-size syncs, the oldest first.
+     */
+    public List<SyncRunResult> getSyncHistory() {
+        synchronized (syncHistory) {
+            return new ArrayList<>(syncHistory);
+        }
+    }
+
+    /**
+     * @param id - id of the post.
+     * @return - the post of the given id and ApiError status, 404 when there is none.
+     */
+    public PostDataResponse getPostById(int id) {
+        return postDataDao.getPostById(id);
+    }
+
+    /**
+     * @param text - words which all have to be in the title or the body of the post.
+     * @param limit - page size, at most MAX_SEARCH_RESULTS.
+     * @param offset - number of the best results to skip.
+     * @return - page of the posts matching the text, the best matches first.
+     */
+    public PostDataSearchResponse searchPosts(String text, int limit, int offset) {
+        return postDataDao.searchPosts(text, Math.max(0, Math.min(limit, MAX_SEARCH_RESULTS)), Math.max(0, offset));
+    }
+
+    /**
+     * @param userId - id of the user.
+     * @param query - optional title order and limit/offset or keyset pagination, its userId is replaced.
+     * @param skipUserId - true if you want to omit the userId from the database records.
+     * @return - posts of the user read by the userId index.
+     */
+    public PostDataJsonResponse getPostsOfUser(int userId, PostDataQuery query, boolean skipUserId) {
+        query.setUserId(userId);
+        return getPostsFromDb(query, skipUserId);
+    }
+
+    /**
+     * @return - number of the posts of every user, ordered by the userId.
+     */
+    public PostDataUserCountsResponse getUserPostCounts() {
+        return postDataDao.getUserPostCounts();
+    }
+
+    /**
+     * @param limit - number of the users, at most MAX_TOP_USERS.
+     * @return - users with the most posts, the user with the most posts first.
+     */
+    public PostDataUserCountsResponse getTopUsers(int limit) {
+        return postDataDao.getTopUsers(Math.max(0, Math.min(limit, MAX_TOP_USERS)));
+    }
+
+    /**
+     * Updates PostData record in a database, according to the PostData object id.
+     * @param postData - Object to be updated.
+     * @return - ApiError status of the operation.
+     */
+    public ApiError updatePost(PostData postData) {
+        return isWriteBehind() ? writeBehind.update(postData).join() : postDataDao.updatePost(postData);
+    }
+
+    /**
+     * Updates the post like updatePost, without blocking a thread while the write-behind buffer is flushed.
+     * @param executor - runs the update, or its enqueue into the write-behind buffer,
+     * which waits while the buffer is full.
+     * @return - ApiError status of the operation, 202 when the write-behind acks the writes on enqueue.
+     */
+    public CompletableFuture<ApiError> updatePostAsync(PostData postData, Executor executor) {
+        return isWriteBehind()
+                ? CompletableFuture.supplyAsync(() -> writeBehind.update(postData), executor).thenCompose(ack -> ack)
+                : CompletableFuture.supplyAsync(() -> postDataDao.updatePost(postData), executor);
+    }
+
+    /**
+     * Updates posts from the API to a database in a single transaction. Does not add the new records.
+     * @return - ApiError status of the operation.
+     */
+    public ApiError updatePostsFromApiToDb() {
+
+        PostDataJsonResponse postDataJsonResponse = fetchPostsFromApi(false).getResponse();
+        if(postDataJsonResponse.getApiError().code == 200) {
+            postDataJsonResponse.setApiError(updatePosts(postDataJsonResponse.getPostDataList()).getApiError());
+        }
+
+        return postDataJsonResponse.getApiError();
+    }
+
+    /**
+     * Updates the posts of the given ids in a single transaction.
+     * @param postDataList - PostData objects to update.
+     * @return - rows changed by every post and the ApiError status of the operation.
+     */
+    public PostDataBulkResponse updatePosts(List<PostData> postDataList) {
+        return postDataDao.updateAll(postDataList);
+    }
+
+    /**
+     * Deletes PostData record from the database, according to the id.
+     * @param id - id of the record to be deleted.
+     * @return - ApiError status of the operation.
+     */
+    public ApiError deletePost(int id) {
+        return isWriteBehind() ? writeBehind.delete(id).join() : postDataDao.deletePost(id);
+    }
+
+    /**
+     * Deletes the post like deletePost, without blocking a thread while the write-behind buffer is flushed.
+     * @param executor - runs the delete, or its enqueue into the write-behind buffer,
+     * which waits while the buffer is full.
+     * @return - ApiError status of the operation, 202 when the write-behind acks the writes on enqueue.
+     */
+    public CompletableFuture<ApiError> deletePostAsync(int id, Executor executor) {
+        return isWriteBehind()
+                ? CompletableFuture.supplyAsync(() -> writeBehind.delete(id), executor).thenCompose(ack -> ack)
+                : CompletableFuture.supplyAsync(() -> postDataDao.deletePost(id), executor);
+    }
+
+    private boolean isWriteBehind() {
+        return writeBehind != null && writeBehind.isEnabled();
+    }
+
+    /**
+     * Deletes the posts of the given ids in a single transaction.
+     * @param ids - ids of the records to delete.
+     * @return - rows deleted for every id and the ApiError status of the operation.
+     */
+    public PostDataBulkResponse deletePosts(List<Integer> ids) {
+        return postDataDao.deleteAll(ids);
+    }
+
+    /**
+     * @return - hit, miss and eviction counters of the posts cache.
+     */
+    public PostDataCacheStats getCacheStats() {
+        return postDataCache != null ? postDataCache.getStats() : null;
+    }
+
+    /**
+     * The RestTemplateBuilder is not auto-configured in the "reactive" profile, the sync still uses the RestTemplate there.
+     * Requests go through a pool of up to posts.api.max-connections keep-alive connections, so the parallel pages
+     * and the repeated syncs reuse the connections instead of connecting for every request.
+     * Connections idle for posts.api.keep-alive milliseconds are closed.
+     */
+    @Bean
+    public RestTemplate restTemplate(
+            ObjectProvider<RestTemplateBuilder> builder,
+            MeterRegistry meterRegistry,
+            @Value("${posts.api.max-connections:20}") int maxConnections,
+            @Value("${posts.api.keep-alive:30000}") long keepAlive) {
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+                })
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
+        return builder.getIfAvailable(RestTemplateBuilder::new)
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+                .setConnectTimeout(Duration.ofMillis(3000))
+                .setReadTimeout(Duration.ofMillis(3000))
+                .additionalInterceptors(new UpstreamMetricsInterceptor(meterRegistry))
+                .build();
+    }
+
+    /**
+     * @param apiUrls - addresses of the API sources, posts.api.url when posts.api.urls isn't set.
+     */
+    @Autowired
+    public void setApiUrls(
+            @Value("${posts.api.urls:${posts.api.url:https://jsonplaceholder.typicode.com/posts}}") String[] apiUrls) {
+        this.apiUrls = Arrays.asList(apiUrls);
+    }
+
+    @Autowired
+    public void setApiPageSize(@Value("${posts.api.page-size:0}") int apiPageSize) {
+        this.apiPageSize = apiPageSize;
+    }
+
+    @Autowired
+    public void setApiPageQuery(@Value("${posts.api.page-query:_start={start}&_limit={limit}}") String apiPageQuery) {
+        this.apiPageQuery = apiPageQuery;
+    }
+
+    @Autowired
+    public void setApiConcurrency(@Value("${posts.api.concurrency:4}") int apiConcurrency) {
+        this.apiConcurrency = apiConcurrency;
+    }
+
+    @Autowired
+    public void setApiFetchExecutor(@Qualifier("apiFetchExecutor") Executor apiFetchExecutor) {
+        this.apiFetchExecutor = apiFetchExecutor;
+    }
+
+    @Autowired
+    public void setApiCacheTtl(@Value("${posts.api.cache-ttl:60000}") long apiCacheTtl) {
+        this.apiCacheTtl = apiCacheTtl;
+    }
+
+    /**
+     * Registers posts.sync.queue.depth, the batches waiting for the diff and the write stage of the running sync.
+     */
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        for (String stage : Arrays.asList(PostDataSyncPipeline.DIFF, PostDataSyncPipeline.WRITE)) {
+            Gauge.builder("posts.sync.queue.depth", this, service -> service.getQueuedSyncBatches(stage))
+                    .description("Batches of the running sync waiting for the stage")
+                    .tag("stage", stage)
+                    .register(meterRegistry);
+        }
+    }
+
+    @Autowired
+    public void setSyncQueueCapacity(@Value("${posts.sync.queue-capacity:4}") int syncQueueCapacity) {
+        this.syncQueueCapacity = syncQueueCapacity;
+    }
+
+    @Autowired
+    public void setSyncExecutor(@Qualifier("syncExecutor") Executor syncExecutor) {
+        this.syncExecutor = syncExecutor;
+    }
+
+    private int getQueuedSyncBatches(String stage) {
+        PostDataSyncPipeline pipeline = runningPipeline;
+        return pipeline != null ? pipeline.getQueuedBatches(stage) : 0;
+    }
+
+    /**
+     * Runs a stage of the sync on its own thread when there is no syncExecutor.
+     */
+    private static void startSyncStage(Runnable stage) {
+        Thread thread = new Thread(stage, "posts-sync-stage");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Autowired
+    public void setSyncHistorySize(@Value("${posts.sync.history-size:100}") int syncHistorySize) {
+        this.syncHistorySize = syncHistorySize;
+    }
+
+    @Autowired
+    public void setApiBatchSize(@Value("${posts.api.batch-size:1000}") int apiBatchSize) {
+        this.apiBatchSize = apiBatchSize;
+    }
+
+    @Autowired
+    public void setRestTemplate(RestTemplate restTemplate) {
+        this.restTemplate = restTemplate;
+    }
+
+    @Autowired
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Autowired
+    public void setPostDataDao(PostDataDaoInterface postDataDao) {
+        this.postDataDao = postDataDao;
+    }
+
+    @Autowired
+    public void setResponseCache(PostDataResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    @Autowired
+    public void setWriteBehind(PostDataWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    @Autowired
+    public void setPostDataCache(CachingPostDataDao postDataCache) {
+        this.postDataCache = postDataCache;
+    }
+
+    /**
+     * Posts of the API, handed over in batches.
+     */
+    private interface PostSource {
+
+        /**
+         * @return - true when every post of the API was handed over, false when some may be missing.
+         */
+        boolean fetch(PostDataBatchHandler handler) throws IOException;
+    }
+
+    /**
+     * Last good payload of the API with its validators.
+     */
+    private static class ApiPayload {
+
+        private final List<PostData> postDataList;
+        private final ApiValidators validators;
+        private final long fetchedAt;
+
+        private ApiPayload(List<PostData> postDataList, ApiValidators validators, long fetchedAt) {
+            this.postDataList = postDataList;
+            this.validators = validators;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * ETag and Last-Modified of an API response, sent back as If-None-Match and If-Modified-Since.
+     */
+    private static class ApiValidators {
+
+        private final String eTag;
+        private final long lastModified;
+
+        private ApiValidators(String eTag, long lastModified) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        private void addTo(HttpHeaders headers) {
+            if (eTag != null) {
+                headers.setIfNoneMatch(eTag);
+            }
+            if (lastModified >= 0) {
+                headers.setIfModifiedSince(lastModified);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a JSON array of posts token by token and hands them over in batches,
+ * so no more than a single batch of the posts is held in memory, whatever the size of the array.
+ */
+public class PostDataStreamReader {
+
+    private final ObjectReader reader;
+    private final int batchSize;
+
+    public PostDataStreamReader(ObjectMapper objectMapper, int batchSize) {
+        this.reader = objectMapper.readerFor(PostData.class);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param inputStream - stream with a JSON array of posts.
+     * @param handler - called with every full batch and with the last, possibly smaller one.
+     * @return - number of the posts read.
+     */
+    public int read(InputStream inputStream, PostDataBatchHandler handler) throws IOException {
+        int count = 0;
+        try (JsonParser parser = reader.getFactory().createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array of posts.");
+            }
+            List<PostData> batch = new ArrayList<>(batchSize);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                batch.add(reader.readValue(parser));
+                count++;
+                if (batch.size() == batchSize) {
+                    handler.handle(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new IOException("Unexpected " + parser.currentToken() + " in the JSON array of posts.");
+            }
+            if (!batch.isEmpty()) {
+                handler.handle(batch);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,307 @@
+package com.apzumi.postsdataapplication;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages of a sync connected by bounded queues, so fetching, diffing and writing the posts overlap.
+ * The fetch stage is the thread handing the decoded batches over, the diff stage compares them with the stored
+ * fingerprints, skipping the ids seen before, and the write stage writes the changes, one transaction per batch.
+ * A full queue blocks the stage before it, so at most queueCapacity batches wait between two stages
+ * and a sync takes about as long as its slowest stage instead of the sum of all of them.
+ * Deletes are written only after the last batch, so a broken fetch never deletes anything,
+ * and only when the fetch read every post of the API.
+ */
+public class PostDataSyncPipeline implements PostDataBatchHandler {
+
+    static final String FETCH = "fetch";
+    static final String DIFF = "diff";
+    static final String WRITE = "write";
+    private static final long POLL_MILLIS = 100;
+    // identity of the last element of a queue, the batches and the diffs themselves are never compared
+    private static final List<PostData> END_OF_BATCHES = new ArrayList<>();
+    private static final PostDataDiff END_OF_DIFFS = new PostDataDiff();
+
+    private final PostDataDaoInterface postDataDao;
+    private final Map<Integer, Long> stored;
+    private final Set<Integer> seen = new HashSet<>();
+    private final SyncRunResult result;
+    private final MeterRegistry meterRegistry;
+    private final Executor executor;
+    private final BlockingQueue<List<PostData>> diffQueue;
+    private final BlockingQueue<PostDataDiff> writeQueue;
+    private final Stage fetch = new Stage(FETCH);
+    private final Stage diff = new Stage(DIFF);
+    private final Stage write = new Stage(WRITE);
+    private CompletableFuture<Void> stages;
+    private long lastHandOver;
+    private volatile boolean stopped;
+    private volatile IOException failure;
+
+    /**
+     * @param stored - fingerprints stored by the previous sync, by post id.
+     * @param result - result of the sync, its rows and stages are updated by the pipeline.
+     * @param executor - runs the diff and the write stage, needs two threads for a sync.
+     */
+    public PostDataSyncPipeline(
+            PostDataDaoInterface postDataDao,
+            Map<Integer, Long> stored,
+            int queueCapacity,
+            SyncRunResult result,
+            MeterRegistry meterRegistry,
+            Executor executor) {
+        this.postDataDao = postDataDao;
+        this.stored = stored;
+        this.result = result;
+        this.meterRegistry = meterRegistry;
+        this.executor = executor;
+        this.diffQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.writeQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Starts the diff and the write stage, the calling thread becomes the fetch stage.
+     */
+    public void start() throws IOException {
+        lastHandOver = System.nanoTime();
+        try {
+            CompletableFuture<Void> diffStage = CompletableFuture.runAsync(() -> runStage(this::diffBatches), executor);
+            // joined by abort when the write stage is rejected
+            stages = diffStage;
+            stages = CompletableFuture.allOf(diffStage,
+                    CompletableFuture.runAsync(() -> runStage(this::writeDiffs), executor));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Sync stages rejected: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Hands a batch over to the diff stage, waiting while its queue is full.
+     * The time since the previous batch was handed over is the time the fetch stage worked on this one.
+     */
+    @Override
+    public void handle(List<PostData> batch) throws IOException {
+        long start = System.nanoTime();
+        fetch.busy(lastHandOver, start, batch.size());
+        result.setRowsFetched(result.getRowsFetched() + batch.size());
+        put(diffQueue, batch, fetch);
+        lastHandOver = System.nanoTime();
+    }
+
+    /**
+     * Waits for the queued batches to be written, then writes the deletes.
+     * @param complete - true when the batches hold every post of the API, the stored posts missing from them
+     * are deleted, false when some posts may not have been fetched, nothing is deleted.
+     * @throws IOException - when a stage failed, the batches written before stay in the database.
+     */
+    public void finish(boolean complete) throws IOException {
+        fetch.busy(lastHandOver, System.nanoTime(), 0);
+        put(diffQueue, END_OF_BATCHES, fetch);
+        try {
+            stages.join();
+        } catch (RuntimeException e) {
+            // the failure is kept by the stage
+        }
+        throwFailure();
+        if (complete) {
+            long start = System.nanoTime();
+            PostDataDiff deletes = PostDataDiff.computeDeletes(stored, seen);
+            applyDiff(deletes);
+            write.busy(start, System.nanoTime(), deletes.getDeletes().size());
+        }
+        recordStages();
+    }
+
+    /**
+     * Stops the stages without writing the rest of the batches and waits for them, used when the fetch failed.
+     * Does nothing after finish.
+     */
+    public void abort() {
+        stopped = true;
+        if (stages != null) {
+            try {
+                stages.join();
+            } catch (RuntimeException e) {
+                // the fetch failure is reported instead
+            }
+        }
+        recordStages();
+    }
+
+    /**
+     * @return - batches waiting for the diff and the write stage.
+     */
+    public int getQueuedBatches(String stage) {
+        return DIFF.equals(stage) ? diffQueue.size() : WRITE.equals(stage) ? writeQueue.size() : 0;
+    }
+
+    private void diffBatches() throws IOException {
+        for (List<PostData> batch = take(diffQueue, diff); batch != END_OF_BATCHES; batch = take(diffQueue, diff)) {
+            long start = System.nanoTime();
+            PostDataDiff batchDiff = PostDataDiff.computeChanges(batch, stored, seen);
+            diff.busy(start, System.nanoTime(), batch.size());
+            if (!batchDiff.isEmpty()) {
+                put(writeQueue, batchDiff, diff);
+            }
+        }
+        put(writeQueue, END_OF_DIFFS, diff);
+    }
+
+    private void writeDiffs() throws IOException {
+        for (PostDataDiff batchDiff = take(writeQueue, write); batchDiff != END_OF_DIFFS; batchDiff = take(writeQueue, write)) {
+            long start = System.nanoTime();
+            applyDiff(batchDiff);
+            write.busy(start, System.nanoTime(), batchDiff.getChangedRows());
+        }
+    }
+
+    private void applyDiff(PostDataDiff batchDiff) throws IOException {
+        if (batchDiff.isEmpty()) {
+            return;
+        }
+        ApiError status = postDataDao.applyDiff(batchDiff);
+        if (status.code != 200) {
+            result.setApiError(status);
+            throw new IOException(status.message);
+        }
+        result.setRowsInserted(result.getRowsInserted() + batchDiff.getInserts().size());
+        result.setRowsUpdated(result.getRowsUpdated() + batchDiff.getUpdates().size());
+        result.setRowsDeleted(result.getRowsDeleted() + batchDiff.getDeletes().size());
+    }
+
+    private void runStage(StageLoop loop) {
+        try {
+            loop.run();
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits for the room in the queue, the waiting time is the time the stage was blocked.
+     */
+    private <T> void put(BlockingQueue<T> queue, T element, Stage stage) throws IOException {
+        long start = System.nanoTime();
+        try {
+            while (!queue.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                throwFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Sync interrupted.", e);
+        }
+        stage.blocked(start, System.nanoTime());
+    }
+
+    private <T> T take(BlockingQueue<T> queue, Stage stage) throws IOException {
+        try {
+            T element;
+            while ((element = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                throwFailure();
+            }
+            stage.queued(queue.size() + 1);
+            return element;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Sync interrupted.", e);
+        }
+    }
+
+    private void throwFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (stopped) {
+            throw new IOException("Sync stopped.");
+        }
+    }
+
+    /**
+     * Keeps the metrics of the stages in the result and records them in posts.sync.stage and posts.sync.stage.rows.
+     */
+    private void recordStages() {
+        if (!result.getStages().isEmpty()) {
+            return;
+        }
+        for (Stage stage : Arrays.asList(fetch, diff, write)) {
+            SyncStageResult stageResult = stage.toResult();
+            result.getStages().add(stageResult);
+            Timer.builder("posts.sync.stage")
+                    .description("Time the sync stages spent working on the batches and blocked by the next stage")
+                    .tag("stage", stage.name)
+                    .tag("state", "busy")
+                    .register(meterRegistry)
+                    .record(stage.busyNanos, TimeUnit.NANOSECONDS);
+            Timer.builder("posts.sync.stage")
+                    .tag("stage", stage.name)
+                    .tag("state", "blocked")
+                    .register(meterRegistry)
+                    .record(stage.blockedNanos, TimeUnit.NANOSECONDS);
+            Counter.builder("posts.sync.stage.rows")
+                    .tag("stage", stage.name)
+                    .register(meterRegistry)
+                    .increment(stage.rows);
+        }
+    }
+
+    @FunctionalInterface
+    private interface StageLoop {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Counters of a stage, updated by a single thread at a time.
+     */
+    private static class Stage {
+
+        private final String name;
+        private volatile int batches;
+        private volatile int rows;
+        private volatile long busyNanos;
+        private volatile long blockedNanos;
+        private volatile int maxQueued;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private void busy(long start, long end, int batchRows) {
+            busyNanos += end - start;
+            if (batchRows > 0) {
+                batches++;
+                rows += batchRows;
+            }
+        }
+
+        private void blocked(long start, long end) {
+            blockedNanos += end - start;
+        }
+
+        private void queued(int queued) {
+            maxQueued = Math.max(maxQueued, queued);
+        }
+
+        private SyncStageResult toResult() {
+            return new SyncStageResult(name, batches, rows,
+                    TimeUnit.NANOSECONDS.toMillis(busyNanos), TimeUnit.NANOSECONDS.toMillis(blockedNanos), maxQueued);
+        }
+    }
+}
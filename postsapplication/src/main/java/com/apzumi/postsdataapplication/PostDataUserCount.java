@@ -0,0 +1,17 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Number of the posts of a user.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PostDataUserCount {
+
+    private int userId;
+    private long posts;
+}
@@ -0,0 +1,17 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Post counts of the users with the ApiError status of the query.
+ */
+@Data
+@AllArgsConstructor
+public class PostDataUserCountsResponse {
+
+    private List<PostDataUserCount> userCounts;
+    private ApiError apiError;
+}
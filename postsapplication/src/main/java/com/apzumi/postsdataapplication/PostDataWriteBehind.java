@@ -0,0 +1,302 @@
+package com.apzumi.postsdataapplication;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional write-behind of the single post updates and deletes, turned on with posts.write-behind.enabled.
+ * The writes wait in a buffer holding a single write per post id, so the repeated writes of a post are coalesced
+ * into the last one, and a single writer thread flushes the buffer as one transaction.
+ * An update of a post waiting to be deleted isn't coalesced into the delete, it's answered 404.
+ * With posts.write-behind.ack=flush the callers are answered once the flush is committed, with the status
+ * of the write made for their post. The writer flushes as soon as it's free, so the writes arriving during a flush
+ * are committed together by the next one, and a caller waits for at most two flushes.
+ * With ack=enqueue the callers are answered 202 as soon as the write is buffered, and the writer waits
+ * posts.write-behind.flush-interval milliseconds after the first buffered write, or until the buffer holds
+ * posts.write-behind.max-batch posts, to coalesce more writes. The writes not flushed yet are lost
+ * when the application is killed.
+ * Callers wait while the buffer holds posts.write-behind.max-pending posts, so the staleness stays bounded.
+ * The bulk writes and the sync don't go through the buffer, a buffered write flushed after them overwrites them.
+ */
+@Component
+public class PostDataWriteBehind implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostDataWriteBehind.class);
+    static final String ACK_FLUSH = "flush";
+    static final String ACK_ENQUEUE = "enqueue";
+
+    private final PostDataDaoInterface postDataDao;
+    private final boolean enabled;
+    private final long flushIntervalNanos;
+    private final int maxBatch;
+    private final int maxPending;
+    private final boolean ackOnEnqueue;
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writeBuffered = lock.newCondition();
+    private final Condition bufferFlushed = lock.newCondition();
+    private Map<Integer, PendingWrite> pending = new LinkedHashMap<>();
+    private boolean stopped;
+    private Thread writer;
+
+    @Autowired
+    public PostDataWriteBehind(
+            PostDataDaoInterface postDataDao,
+            @Value("${posts.write-behind.enabled:false}") boolean enabled,
+            @Value("${posts.write-behind.flush-interval:50}") long flushInterval,
+            @Value("${posts.write-behind.max-batch:1000}") int maxBatch,
+            @Value("${posts.write-behind.max-pending:10000}") int maxPending,
+            @Value("${posts.write-behind.ack:flush}") String ack) {
+        this.postDataDao = postDataDao;
+        this.enabled = enabled;
+        if (!ACK_FLUSH.equals(ack) && !ACK_ENQUEUE.equals(ack)) {
+            throw new IllegalArgumentException("posts.write-behind.ack must be flush or enqueue, not " + ack);
+        }
+        this.ackOnEnqueue = ACK_ENQUEUE.equals(ack);
+        this.flushIntervalNanos = ackOnEnqueue ? TimeUnit.MILLISECONDS.toNanos(flushInterval) : 0;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxPending = Math.max(this.maxBatch, maxPending);
+    }
+
+    /**
+     * Starts the writer thread when the write-behind is enabled.
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        writer = new Thread(this::runWriter, "posts-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+        LOGGER.info("Write-behind started: flush after " + TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos)
+                + " ms or " + maxBatch + " posts, ack on " + (ackOnEnqueue ? ACK_ENQUEUE : ACK_FLUSH) + ".");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param postData - post to be updated, according to its id.
+     * @return - ApiError status of the update made for the post, 404 when there is no post of the id
+     * or the post is waiting to be deleted, or 202 right away when the ack is on enqueue.
+     */
+    public CompletableFuture<ApiError> update(PostData postData) {
+        return enqueue(postData.getId(), postData);
+    }
+
+    /**
+     * @param id - id of the post to be deleted.
+     * @return - ApiError status of the write made for the post, or 202 right away when the ack is on enqueue.
+     */
+    public CompletableFuture<ApiError> delete(int id) {
+        return enqueue(id, null);
+    }
+
+    private CompletableFuture<ApiError> enqueue(int id, PostData postData) {
+        lock.lock();
+        try {
+            while (!stopped && pending.size() >= maxPending && !pending.containsKey(id)) {
+                bufferFlushed.await();
+            }
+            if (stopped) {
+                return CompletableFuture.completedFuture(new ApiError(503, "Write-behind stopped."));
+            }
+            PendingWrite write = pending.get(id);
+            if (write != null && write.postData == null && postData != null) {
+                return updateOfDeleted(write, id);
+            }
+            if (write == null) {
+                write = new PendingWrite();
+                pending.put(id, write);
+                if (pending.size() == 1 || pending.size() == maxBatch) {
+                    writeBuffered.signal();
+                }
+            } else {
+                Counter.builder("posts.write-behind.writes").tag("outcome", "coalesced").register(meterRegistry)
+                        .increment();
+            }
+            write.postData = postData;
+            if (ackOnEnqueue) {
+                return CompletableFuture.completedFuture(new ApiError(202, "Accepted"));
+            }
+            CompletableFuture<ApiError> ack = new CompletableFuture<>();
+            write.acks.add(ack);
+            return ack;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(new ApiError(503, "Interrupted while the write-behind buffer is full."));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the pending delete instead of coalescing the update into it.
+     * The update of a deleted post is answered 404, or with the status of the delete when it fails.
+     */
+    private CompletableFuture<ApiError> updateOfDeleted(PendingWrite delete, int id) {
+        Counter.builder("posts.write-behind.writes").tag("outcome", "coalesced").register(meterRegistry).increment();
+        if (ackOnEnqueue) {
+            return CompletableFuture.completedFuture(notFound(id));
+        }
+        CompletableFuture<ApiError> deleted = new CompletableFuture<>();
+        delete.acks.add(deleted);
+        return deleted.thenApply(status -> status.code == 200 ? notFound(id) : status);
+    }
+
+    /**
+     * Waits for the first write, then for the flush interval or a full batch, and flushes the whole buffer.
+     * The buffer grows past a batch only while a flush is running.
+     * Flushes the rest of the buffer when stopped.
+     */
+    private void runWriter() {
+        while (true) {
+            Map<Integer, PendingWrite> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !stopped) {
+                    writeBuffered.awaitUninterruptibly();
+                }
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                long remaining;
+                while (pending.size() < maxBatch && !stopped && (remaining = deadline - System.nanoTime()) > 0) {
+                    writeBuffered.awaitNanos(remaining);
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                bufferFlushed.signalAll();
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            flush(batch);
+        }
+    }
+
+    /**
+     * Writes the updates and the deletes of the batch in a single transaction and answers their callers.
+     */
+    private void flush(Map<Integer, PendingWrite> batch) {
+        long start = System.nanoTime();
+        List<PostData> updates = new ArrayList<>();
+        List<Integer> deletes = new ArrayList<>();
+        for (Map.Entry<Integer, PendingWrite> entry : batch.entrySet()) {
+            if (entry.getValue().postData != null) {
+                updates.add(entry.getValue().postData);
+            } else {
+                deletes.add(entry.getKey());
+            }
+        }
+        PostDataBulkResponse response = write(updates, deletes);
+        int index = 0;
+        for (PostData postData : updates) {
+            ApiError status = response.getApiError().code != 200 ? response.getApiError()
+                    : response.getResults()[index] > 0 ? new ApiError()
+                    : notFound(postData.getId());
+            batch.get(postData.getId()).acks.forEach(ack -> ack.complete(status));
+            index++;
+        }
+        for (Integer id : deletes) {
+            batch.get(id).acks.forEach(ack -> ack.complete(response.getApiError()));
+        }
+        if (response.getApiError().code != 200) {
+            LOGGER.info("Write-behind flush of " + batch.size() + " posts failed: " + response.getApiError().message);
+        }
+        Timer.builder("posts.write-behind.flush")
+                .description("Duration of the write-behind flushes")
+                .tag("outcome", response.getApiError().code == 200 ? "success" : "error")
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        Counter.builder("posts.write-behind.writes").tag("outcome", "written").register(meterRegistry)
+                .increment(batch.size());
+    }
+
+    private PostDataBulkResponse write(List<PostData> updates, List<Integer> deletes) {
+        try {
+            return postDataDao.writeAll(updates, deletes);
+        } catch (RuntimeException e) {
+            LOGGER.info(e.getMessage());
+            return new PostDataBulkResponse(new int[updates.size() + deletes.size()], 0, new ApiError(500, e.getMessage()));
+        }
+    }
+
+    private static ApiError notFound(int id) {
+        return new ApiError(404, "No post of id " + id);
+    }
+
+    /**
+     * @return - posts waiting in the buffer.
+     */
+    public int getPendingWrites() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers posts.write-behind.pending, the posts waiting in the buffer.
+     */
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("posts.write-behind.pending", this, PostDataWriteBehind::getPendingWrites)
+                .description("Posts waiting in the write-behind buffer")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Flushes the buffered writes before the shutdown, the writes enqueued later are answered 503.
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        lock.lock();
+        try {
+            stopped = true;
+            writeBuffered.signal();
+            bufferFlushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    /**
+     * Last write of a post, null postData for a delete, with the callers waiting for it.
+     */
+    private static class PendingWrite {
+
+        private PostData postData;
+        private final List<CompletableFuture<ApiError>> acks = new ArrayList<>(1);
+    }
+}
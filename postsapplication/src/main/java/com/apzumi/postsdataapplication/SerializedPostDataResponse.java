@@ -0,0 +1,36 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * PostDataJsonResponse already encoded in one of the PostDataFormats, with the strong ETag of its content.
+ * The content encoding is "gzip" when the body is compressed, null otherwise.
+ */
+@Data
+@AllArgsConstructor
+public class SerializedPostDataResponse {
+
+    private byte[] body;
+    private String eTag;
+    private MediaType contentType;
+    private String contentEncoding;
+
+    /**
+     * @return - the body with the headers of its format and compression,
+     * varying by the Accept and Accept-Encoding headers for the caches on the way.
+     */
+    public ResponseEntity<byte[]> toResponseEntity() {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .eTag(eTag)
+                .contentType(contentType)
+                .varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+        if (contentEncoding != null) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        }
+        return builder.body(body);
+    }
+}
@@ -0,0 +1,271 @@
+package com.apzumi.postsdataapplication;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of SQLite connections.
+ * SQLite allows only one writer at a time, so all the writes go through a single writer connection,
+ * while the reads are spread over a separate pool of reader connections.
+ * Connections are opened lazily and reused until the application shuts down.
+ * Every new connection gets the configured pragmas. In the WAL journal mode the readers keep reading
+ * the last committed data while the writer is in a transaction, instead of waiting for it.
+ */
+@Component
+public class SqliteConnectionPool implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqliteConnectionPool.class);
+
+    private final String url;
+    private final int readPoolSize;
+    private final int statementCacheSize;
+    private final long connectionTimeout;
+
+    private final BlockingQueue<PooledConnection> idleReaders = new LinkedBlockingQueue<>();
+    private final BlockingQueue<PooledConnection> idleWriter = new LinkedBlockingQueue<>();
+    private final AtomicInteger openReaders = new AtomicInteger();
+    private final AtomicInteger openWriters = new AtomicInteger();
+    private volatile boolean closed;
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private String journalMode = "WAL";
+    private String synchronous = "NORMAL";
+    private long mmapSize = 268435456;
+    private long cacheSize = -16000;
+    private long busyTimeout = 5000;
+
+    @Autowired
+    public SqliteConnectionPool(
+            @Value("${posts.datasource.url}") String url,
+            @Value("${posts.datasource.read-pool-size:4}") int readPoolSize,
+            @Value("${posts.datasource.statement-cache-size:32}") int statementCacheSize,
+            @Value("${posts.datasource.connection-timeout:5000}") long connectionTimeout) {
+        this.url = url;
+        this.readPoolSize = readPoolSize;
+        this.statementCacheSize = statementCacheSize;
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Registers gauges of the open and idle connections of both lanes, next to their pool sizes.
+     */
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        registerGauges("reader", openReaders, idleReaders, readPoolSize);
+        registerGauges("writer", openWriters, idleWriter, 1);
+    }
+
+    /**
+     * @param journalMode - journal_mode of the database, set by the writer connection, e.g. WAL or DELETE.
+     */
+    @Autowired
+    public void setJournalMode(@Value("${posts.datasource.journal-mode:WAL}") String journalMode) {
+        this.journalMode = journalMode;
+    }
+
+    /**
+     * @param synchronous - synchronous pragma, NORMAL is safe in the WAL mode and skips the fsync of every commit.
+     */
+    @Autowired
+    public void setSynchronous(@Value("${posts.datasource.synchronous:NORMAL}") String synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    /**
+     * @param mmapSize - bytes of the database file read through memory mapping, 0 to turn it off.
+     */
+    @Autowired
+    public void setMmapSize(@Value("${posts.datasource.mmap-size:268435456}") long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    /**
+     * @param cacheSize - page cache of every connection, in pages or in KiB when negative.
+     */
+    @Autowired
+    public void setCacheSize(@Value("${posts.datasource.cache-size:-16000}") long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @param busyTimeout - milliseconds a connection retries a locked database before failing with SQLITE_BUSY.
+     */
+    @Autowired
+    public void setBusyTimeout(@Value("${posts.datasource.busy-timeout:5000}") long busyTimeout) {
+        this.busyTimeout = busyTimeout;
+    }
+
+    private void registerGauges(String lane, AtomicInteger open, BlockingQueue<PooledConnection> idle, int maxSize) {
+        Gauge.builder("posts.db.connections.open", open, AtomicInteger::get)
+                .description("Physical SQLite connections opened by the pool")
+                .tag("lane", lane)
+                .register(meterRegistry);
+        Gauge.builder("posts.db.connections.idle", idle, BlockingQueue::size)
+                .description("Open SQLite connections waiting in the pool")
+                .tag("lane", lane)
+                .register(meterRegistry);
+        Gauge.builder("posts.db.connections.max", () -> maxSize)
+                .description("Maximum number of SQLite connections of the pool")
+                .tag("lane", lane)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Borrows one of the reader connections, waiting up to the connection timeout when all of them are in use.
+     * @return - connection to be closed by the caller when done.
+     */
+    public PooledConnection getReadConnection() throws SQLException {
+        return borrow(idleReaders, openReaders, readPoolSize, false);
+    }
+
+    /**
+     * Borrows the single writer connection, waiting up to the connection timeout when it is in use.
+     * @return - connection to be closed by the caller when done.
+     */
+    public PooledConnection getWriteConnection() throws SQLException {
+        return borrow(idleWriter, openWriters, 1, true);
+    }
+
+    /**
+     * @return - number of the physical connections currently opened by the pool.
+     */
+    public int getOpenConnections() {
+        return openReaders.get() + openWriters.get();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Borrows a connection, recording the time spent waiting for it in posts.db.connections.acquire.
+     */
+    private PooledConnection borrow(
+            BlockingQueue<PooledConnection> idle,
+            AtomicInteger open,
+            int maxSize,
+            boolean writer) throws SQLException {
+
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            PooledConnection pooledConnection = acquire(idle, open, maxSize, writer);
+            outcome = "success";
+            return pooledConnection;
+        } finally {
+            Timer.builder("posts.db.connections.acquire")
+                    .description("Time spent waiting for a SQLite connection")
+                    .tags("lane", writer ? "writer" : "reader", "outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private PooledConnection acquire(
+            BlockingQueue<PooledConnection> idle,
+            AtomicInteger open,
+            int maxSize,
+            boolean writer) throws SQLException {
+
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+
+        PooledConnection pooledConnection = idle.poll();
+        if (pooledConnection != null) {
+            return pooledConnection;
+        }
+
+        if (open.incrementAndGet() <= maxSize) {
+            try {
+                return open(writer);
+            } catch (SQLException e) {
+                open.decrementAndGet();
+                throw e;
+            }
+        }
+        open.decrementAndGet();
+
+        try {
+            pooledConnection = idle.poll(connectionTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.");
+        }
+        if (pooledConnection == null) {
+            throw new SQLException("Timed out waiting for a " + (writer ? "writer" : "reader") + " connection.");
+        }
+        return pooledConnection;
+    }
+
+    private PooledConnection open(boolean writer) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + busyTimeout);
+            if (writer) {
+                // the journal mode is kept in the database file, so it is enough to set it once from the writer
+                statement.execute("PRAGMA journal_mode = " + pragmaName(journalMode));
+            }
+            statement.execute("PRAGMA synchronous = " + pragmaName(synchronous));
+            statement.execute("PRAGMA mmap_size = " + mmapSize);
+            statement.execute("PRAGMA cache_size = " + cacheSize);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new PooledConnection(this, connection, writer, statementCacheSize);
+    }
+
+    private static String pragmaName(String value) throws SQLException {
+        if (!value.matches("[A-Za-z]+")) {
+            throw new SQLException("Invalid pragma value: " + value);
+        }
+        return value;
+    }
+
+    void release(PooledConnection pooledConnection) {
+        AtomicInteger open = pooledConnection.isWriter() ? openWriters : openReaders;
+        if (closed || pooledConnection.isClosed()) {
+            pooledConnection.closePhysically();
+            open.decrementAndGet();
+            return;
+        }
+        (pooledConnection.isWriter() ? idleWriter : idleReaders).offer(pooledConnection);
+    }
+
+    /**
+     * Closes all the idle connections. Borrowed ones are closed as soon as they are given back.
+     */
+    @Override
+    public void destroy() {
+        closed = true;
+        closeIdle(idleReaders, openReaders);
+        closeIdle(idleWriter, openWriters);
+        LOGGER.info("SQLite connection pool closed.");
+    }
+
+    private void closeIdle(BlockingQueue<PooledConnection> idle, AtomicInteger open) {
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idle.poll()) != null) {
+            pooledConnection.closePhysically();
+            open.decrementAndGet();
+        }
+    }
+}
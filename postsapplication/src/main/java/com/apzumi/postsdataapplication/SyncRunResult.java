@@ -0,0 +1,43 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics of a single sync of the posts from the API to the database, with the metrics of its stages.
+ */
+@Data
+@AllArgsConstructor
+public class SyncRunResult {
+
+    private Instant startedAt;
+    private long elapsedMillis;
+    private int rowsFetched;
+    private int rowsInserted;
+    private int rowsUpdated;
+    private int rowsDeleted;
+    private boolean upstreamNotModified;
+    private ApiError apiError;
+    private List<SyncStageResult> stages = new ArrayList<>();
+
+    public SyncRunResult(
+            Instant startedAt,
+            long elapsedMillis,
+            int rowsFetched,
+            int rowsInserted,
+            int rowsUpdated,
+            int rowsDeleted,
+            boolean upstreamNotModified,
+            ApiError apiError) {
+        this(startedAt, elapsedMillis, rowsFetched, rowsInserted, rowsUpdated, rowsDeleted, upstreamNotModified,
+                apiError, new ArrayList<>());
+    }
+
+    public int getRowsChanged() {
+        return rowsInserted + rowsUpdated + rowsDeleted;
+    }
+}
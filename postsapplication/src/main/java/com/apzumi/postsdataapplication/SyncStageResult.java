@@ -0,0 +1,26 @@
+package com.apzumi.postsdataapplication;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Metrics of a single stage of a sync: the batches and rows it handled, the time it spent working on them,
+ * the time it was blocked by the full queue of the next stage and the most batches waiting in its own queue.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SyncStageResult {
+
+    private String stage;
+    private int batches;
+    private int rows;
+    private long busyMillis;
+    private long blockedMillis;
+    private int maxQueued;
+
+    public long getRowsPerSecond() {
+        return busyMillis > 0 ? rows * 1000L / busyMillis : 0;
+    }
+}
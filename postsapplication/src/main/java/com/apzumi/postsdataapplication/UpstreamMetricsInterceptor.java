@@ -0,0 +1,137 @@
+package com.apzumi.postsdataapplication;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the requests to the API: posts.api.fetch records the time from sending the request
+ * until the response is closed, so it includes reading the body, and posts.api.bytes the size of the body read.
+ * Both are tagged with the response status.
+ */
+public class UpstreamMetricsInterceptor implements ClientHttpRequestInterceptor {
+
+    private final MeterRegistry meterRegistry;
+
+    public UpstreamMetricsInterceptor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(
+            HttpRequest request,
+            byte[] body,
+            ClientHttpRequestExecution execution) throws IOException {
+
+        long start = System.nanoTime();
+        ClientHttpResponse response;
+        try {
+            response = execution.execute(request, body);
+        } catch (IOException e) {
+            record(start, "IO_ERROR", 0);
+            throw e;
+        }
+        return new MeteredResponse(response, start);
+    }
+
+    private void record(long start, String status, long bytes) {
+        Timer.builder("posts.api.fetch")
+                .description("Duration of the requests to the posts API, including reading the body")
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("posts.api.bytes")
+                .description("Bytes of the response bodies read from the posts API")
+                .baseUnit("bytes")
+                .tag("status", status)
+                .register(meterRegistry)
+                .record(bytes);
+    }
+
+    private class MeteredResponse implements ClientHttpResponse {
+
+        private final ClientHttpResponse response;
+        private final long start;
+        private long bytes;
+        private InputStream body;
+        private boolean closed;
+
+        private MeteredResponse(ClientHttpResponse response, long start) {
+            this.response = response;
+            this.start = start;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = new FilterInputStream(response.getBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            bytes++;
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) {
+                            bytes += read;
+                        }
+                        return read;
+                    }
+                };
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                String status;
+                try {
+                    status = String.valueOf(response.getRawStatusCode());
+                } catch (IOException e) {
+                    status = "IO_ERROR";
+                }
+                record(start, status, bytes);
+            }
+            response.close();
+        }
+    }
+}
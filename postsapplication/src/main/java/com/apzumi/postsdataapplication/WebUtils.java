@@ -1,8 +1,34 @@
-package com.apzumi.postsdataapplication;
-
-public class WebUtils {
-
-    static public void setSslProperties() {
-        System.setProperty("https.protocols", "TLSv1.2,TLSv1.1,TLSv1");
-    }
-}
+package com.apzumi.postsdataapplication;
+
+import org.springframework.util.StringUtils;
+
+public class WebUtils {
+
+    static public void setSslProperties() {
+        System.setProperty("https.protocols", "TLSv1.2,TLSv1.1,TLSv1");
+    }
+
+    /**
+     * @param acceptEncoding - value of the Accept-Encoding header, may be null.
+     * @return - true when the client takes gzip bodies, that is gzip or * is listed without q=0.
+     */
+    static public boolean acceptsGzip(String acceptEncoding) {
+        if (!StringUtils.hasText(acceptEncoding)) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"*".equals(name)) {
+                continue;
+            }
+            boolean rejected = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim().replace(" ", "");
+                rejected |= parameter.matches("[qQ]=0(\\.0*)?");
+            }
+            return !rejected;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,248 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ActiveProfiles("reactive")
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = {
+				"posts.datasource.url=jdbc:sqlite:target/posts-reactive-test.db",
+				"posts.sync.enabled=false",
+				"posts.stream.page-size=64"})
+class ReactivePostDataControllerTests {
+
+	private static final int ROWS = 1000;
+
+	@LocalServerPort
+	private int port;
+	@Autowired
+	private WebTestClient webTestClient;
+	@Autowired
+	private PostDataDaoInterface postDataDao;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@BeforeEach
+	public void setup() {
+		List<PostData> postDataList = new ArrayList<>();
+		for (int i = 1; i <= ROWS; i++) {
+			postDataList.add(new PostData(i % 10, i, "title " + i, "body " + i));
+		}
+		postDataDao.saveAll(postDataList);
+	}
+
+	@Test
+	void streamsPostsInPagesAsNdjsonAndJson() throws IOException {
+		String ndjson = webTestClient.get().uri("/db/posts/stream?userId=3")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType("application/x-ndjson")
+				.expectBody(String.class).returnResult().getResponseBody();
+		String[] lines = ndjson.split("\n");
+		assertEquals(ROWS / 10, lines.length);
+		assertEquals(3, objectMapper.readValue(lines[0], PostData.class).getUserId());
+
+		byte[] json = webTestClient.get().uri("/db/posts/stream?format=json&skipUserId=true")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody().returnResult().getResponseBody();
+		PostData[] postDataArray = objectMapper.readValue(json, PostData[].class);
+		assertEquals(ROWS, postDataArray.length);
+		assertEquals(0, postDataArray[0].getUserId());
+		assertEquals(1, postDataArray[0].getId());
+		assertEquals(ROWS, postDataArray[ROWS - 1].getId());
+	}
+
+	@Test
+	void pushesChangesAsServerSentEventsFromTheLastEventId() {
+		long lastSeq = postDataDao.getChanges(-1, 0).getLastSeq();
+		postDataDao.updatePost(new PostData(1, 1, "changed after " + lastSeq, "body"));
+		postDataDao.deletePost(2);
+
+		List<ServerSentEvent<PostDataChange>> events = webTestClient.get().uri("/db/posts/changes")
+				.header("Last-Event-ID", Long.toString(lastSeq))
+				.accept(MediaType.TEXT_EVENT_STREAM)
+				.exchange()
+				.expectStatus().isOk()
+				.returnResult(new ParameterizedTypeReference<ServerSentEvent<PostDataChange>>() { })
+				.getResponseBody()
+				.filter(event -> event.data() != null)
+				.take(2)
+				.collectList()
+				.block(Duration.ofSeconds(10));
+
+		assertEquals(Long.toString(lastSeq + 1), events.get(0).id());
+		assertEquals("update", events.get(0).event());
+		assertEquals("changed after " + lastSeq, events.get(0).data().getPostData().getTitle());
+		assertEquals(Long.toString(lastSeq + 2), events.get(1).id());
+		assertEquals("delete", events.get(1).event());
+		assertEquals(2, events.get(1).data().getId());
+	}
+
+	@Test
+	void streamsPagesInTitleOrderUpToTheLimit() throws IOException {
+		byte[] streamed = webTestClient.get().uri("/db/posts/stream?format=json&filterTitle=descending&offset=10&limit=150")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody().returnResult().getResponseBody();
+		byte[] listed = webTestClient.get().uri("/db/posts?filterTitle=descending&offset=10&limit=150")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody().returnResult().getResponseBody();
+
+		PostData[] postDataArray = objectMapper.readValue(streamed, PostData[].class);
+		PostData[] listedArray = objectMapper.treeToValue(objectMapper.readTree(listed).get("postDataList"), PostData[].class);
+		assertEquals(150, postDataArray.length);
+		assertArrayEquals(listedArray, postDataArray);
+	}
+
+	@Test
+	void servesListingsWithETagAndQueries() {
+		String eTag = webTestClient.get().uri("/db/posts")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody().returnResult().getResponseHeaders().getETag();
+
+		webTestClient.get().uri("/db/posts")
+				.header(HttpHeaders.IF_NONE_MATCH, eTag)
+				.exchange()
+				.expectStatus().isNotModified();
+
+		webTestClient.get().uri("/db/posts?userId=1&filterTitle=ascending&limit=5")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.postDataList.length()").isEqualTo(5)
+				.jsonPath("$.postDataList[0].userId").isEqualTo(1)
+				.jsonPath("$.apiError.code").isEqualTo(200);
+
+		webTestClient.get().uri("/db/posts/7")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.postData.title").isEqualTo("title 7")
+				.jsonPath("$.apiError.code").isEqualTo(200);
+		webTestClient.get().uri("/db/posts/" + (ROWS + 1))
+				.exchange()
+				.expectBody()
+				.jsonPath("$.apiError.code").isEqualTo(404);
+	}
+
+	@Test
+	void servesPostsAndPostCountsOfUsers() {
+		webTestClient.get().uri("/db/users/4/posts?filterTitle=ascending&limit=3")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.postDataList.length()").isEqualTo(3)
+				.jsonPath("$.postDataList[2].userId").isEqualTo(4)
+				.jsonPath("$.postDataList[0].title").isEqualTo("title 104");
+
+		webTestClient.get().uri("/db/users/counts")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.userCounts.length()").isEqualTo(10)
+				.jsonPath("$.userCounts[3].userId").isEqualTo(3)
+				.jsonPath("$.userCounts[3].posts").isEqualTo(ROWS / 10)
+				.jsonPath("$.apiError.code").isEqualTo(200);
+
+		webTestClient.get().uri("/db/users/top?limit=2")
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.userCounts.length()").isEqualTo(2)
+				.jsonPath("$.userCounts[0].userId").isEqualTo(0)
+				.jsonPath("$.userCounts[1].posts").isEqualTo(ROWS / 10);
+	}
+
+	@Test
+	void negotiatesBinaryFormatsAndCompression() throws IOException, InterruptedException {
+		byte[] json = webTestClient.get().uri("/db/posts")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType(MediaType.APPLICATION_JSON)
+				.expectBody().returnResult().getResponseBody();
+		byte[] smile = webTestClient.get().uri("/db/posts")
+				.accept(PostDataFormat.SMILE.getMediaType())
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType(PostDataFormat.SMILE.getMediaType())
+				.expectBody().returnResult().getResponseBody();
+		// the WebTestClient drops the Accept-Encoding header unless it decompresses the responses itself
+		HttpResponse<byte[]> gzipResponse = HttpClient.newHttpClient().send(
+				HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/db/posts"))
+						.header(HttpHeaders.ACCEPT, PostDataFormat.CBOR_VALUE)
+						.header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+						.build(),
+				HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals("gzip", gzipResponse.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null));
+		byte[] gzip = gzipResponse.body();
+		byte[] cbor = new GZIPInputStream(new ByteArrayInputStream(gzip)).readAllBytes();
+
+		assertEquals(objectMapper.readTree(json), PostDataFormat.SMILE.getObjectMapper().readTree(smile));
+		assertEquals(objectMapper.readTree(json), PostDataFormat.CBOR.getObjectMapper().readTree(cbor));
+		assertTrue(smile.length < json.length && cbor.length < json.length && gzip.length < cbor.length);
+
+		byte[] page = webTestClient.get().uri("/db/posts?userId=5&limit=3")
+				.accept(PostDataFormat.SMILE.getMediaType())
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType(PostDataFormat.SMILE.getMediaType())
+				.expectBody().returnResult().getResponseBody();
+		PostData[] postDataArray = objectMapper.treeToValue(
+				PostDataFormat.SMILE.getObjectMapper().readTree(page).get("postDataList"), PostData[].class);
+		assertEquals(3, postDataArray.length);
+		assertEquals(5, postDataArray[0].getUserId());
+	}
+
+	@Test
+	void updatesAndDeletesPostsInBatches() {
+		webTestClient.put().uri("/db/posts/batch")
+				.bodyValue(List.of(new PostData(1, 1, "new title", "new body"), new PostData(1, ROWS + 1, "title", "body")))
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.results.length()").isEqualTo(2)
+				.jsonPath("$.results[0]").isEqualTo(1)
+				.jsonPath("$.results[1]").isEqualTo(0)
+				.jsonPath("$.rows").isEqualTo(1);
+
+		webTestClient.method(HttpMethod.DELETE).uri("/db/posts/batch")
+				.bodyValue(List.of(1, 2, ROWS + 1))
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.results.length()").isEqualTo(3)
+				.jsonPath("$.results[1]").isEqualTo(1)
+				.jsonPath("$.results[2]").isEqualTo(0)
+				.jsonPath("$.apiError.code").isEqualTo(200);
+	}
+}
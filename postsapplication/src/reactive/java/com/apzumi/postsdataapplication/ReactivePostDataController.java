@@ -0,0 +1,342 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * WebFlux variant of the PostDataController routes, active in the "reactive" profile.
+ * The API is read with a WebClient, and /db/posts/stream reads the database pages only as fast as the client takes them,
+ * so the backpressure goes from the socket down to the database reads.
+ * SQLite has no non-blocking driver, so the JDBC calls run on the same bounded dbExecutor as in the servlet stack.
+ */
+@Profile("reactive")
+@RestController
+public class ReactivePostDataController {
+
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final Duration API_TIMEOUT = Duration.ofMillis(3000);
+
+    private final PostDataService postDataService;
+    private final PostDataDao postDataDao;
+    private final PostDataChangeFeed changeFeed;
+    private final WebClient webClient;
+    private final Executor dbExecutor;
+    private final Scheduler dbScheduler;
+    private final Scheduler upstreamScheduler;
+    private final int pageSize;
+    private final ObjectWriter writer = new ObjectMapper().writer();
+
+    @Autowired
+    public ReactivePostDataController(
+            PostDataService postDataService,
+            PostDataDao postDataDao,
+            PostDataChangeFeed changeFeed,
+            WebClient.Builder webClientBuilder,
+            @Value("${posts.stream.page-size:500}") int pageSize,
+            @Qualifier("dbExecutor") Executor dbExecutor,
+            @Qualifier("upstreamExecutor") Executor upstreamExecutor) {
+        this.postDataService = postDataService;
+        this.postDataDao = postDataDao;
+        this.changeFeed = changeFeed;
+        this.webClient = webClientBuilder.build();
+        this.pageSize = pageSize;
+        this.dbExecutor = dbExecutor;
+        this.dbScheduler = Schedulers.fromExecutor(dbExecutor);
+        this.upstreamScheduler = Schedulers.fromExecutor(upstreamExecutor);
+    }
+
+    /**
+     * @return all the posts read from the API and ApiError status,
+     * sharing the cached payload and its validators with the PostDataService.
+     * Several sources or pages are fetched by the PostDataService on the upstreamExecutor.
+     */
+    @GetMapping("/api/posts")
+    public Mono<PostDataJsonResponse> getPostsFromApi() {
+        PostDataJsonResponse cachedResponse = postDataService.getFreshApiPayload();
+        if (cachedResponse != null) {
+            return Mono.just(cachedResponse);
+        }
+        if (!postDataService.isSingleApiRequest()) {
+            return Mono.fromCallable(postDataService::getPostsFromApi).subscribeOn(upstreamScheduler);
+        }
+        return webClient.get()
+                .uri(postDataService.getApiUrls().get(0))
+                .headers(postDataService::addApiValidators)
+                .retrieve()
+                .toEntityList(PostData.class)
+                .timeout(API_TIMEOUT)
+                .map(entity -> postDataService
+                        .acceptApiPayload(entity.getStatusCode(), entity.getHeaders(), entity.getBody())
+                        .getResponse())
+                .onErrorResume(WebClientResponseException.class, e -> Mono.just(new PostDataJsonResponse(
+                        new ArrayList<>(), new ApiError(e.getRawStatusCode(), e.getMessage()))));
+    }
+
+    /**
+     * @see PostDataController#getPostsFromDB(PostDataQuery, boolean)
+     */
+    @GetMapping("/db/posts")
+    public Mono<PostDataJsonResponse> getPostsFromDB(
+            PostDataQuery query,
+            @RequestParam(required = false) boolean skipUserId) {
+        return onDb(() -> postDataService.getPostsFromDb(query, skipUserId));
+    }
+
+    /**
+     * Unfiltered variant of /db/posts, served from the precomputed encoding of the listing.
+     * WebFlux answers 304 Not Modified itself when the If-None-Match header has the ETag of the response.
+     * @see PostDataController#getSerializedPostsFromDB(String, boolean, org.springframework.web.context.request.WebRequest)
+     */
+    @GetMapping(
+            value = "/db/posts",
+            params = {"!userId", "!limit", "!offset", "!afterId", "!afterTitle"},
+            produces = {MediaType.APPLICATION_JSON_VALUE, PostDataFormat.SMILE_VALUE, PostDataFormat.CBOR_VALUE})
+    public Mono<ResponseEntity<byte[]>> getSerializedPostsFromDB(
+            @RequestParam(required = false, defaultValue = "") String filterTitle,
+            @RequestParam(required = false) boolean skipUserId,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        return Mono.fromCallable(() -> postDataService.getSerializedPostsFromDb(
+                        filterTitle, skipUserId, PostDataFormat.negotiate(accept), WebUtils.acceptsGzip(acceptEncoding)))
+                .subscribeOn(dbScheduler)
+                .map(SerializedPostDataResponse::toResponseEntity);
+    }
+
+    /**
+     * Streams the posts in keyset pages of posts.stream.page-size posts. The next page is read only when the client
+     * has taken the previous one, and the reader connection is given back between the pages, so slow clients
+     * don't hold the connections and the dbExecutor threads the other requests are waiting for.
+     * The pages are read past the posts cache, like the servlet stream. Unlike there, the pages are separate reads,
+     * so writes made during the stream may show up in it.
+     * @see PostDataController#streamPostsFromDB(PostDataQuery, boolean, String)
+     */
+    @GetMapping("/db/posts/stream")
+    public ResponseEntity<Flux<String>> streamPostsFromDB(
+            PostDataQuery query,
+            @RequestParam(required = false) boolean skipUserId,
+            @RequestParam(required = false, defaultValue = "ndjson") String format) {
+        boolean ndjson = !"json".equals(format);
+        Flux<PostData> posts = readPage(query, query.getLimit() != null && query.getLimit() >= 0 ? query.getLimit() : -1)
+                .expand(page -> page.hasNext() ? readPage(page.nextQuery(), page.remaining) : Mono.empty())
+                .flatMapIterable(page -> page.posts, 1);
+        if (skipUserId) {
+            posts = posts.doOnNext(postData -> postData.setUserId(0));
+        }
+
+        Flux<String> body;
+        if (ndjson) {
+            body = posts.map(postData -> toJson(postData) + "\n");
+        } else {
+            body = Flux.concat(
+                    Mono.just("["),
+                    posts.index().map(indexed -> (indexed.getT1() > 0 ? "," : "") + toJson(indexed.getT2())),
+                    Mono.just("]"));
+        }
+        return ResponseEntity.ok()
+                .contentType(ndjson ? APPLICATION_NDJSON : MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    /**
+     * Server-sent events of the changes of the posts, like in the PostDataController,
+     * the changes are read on the changeFeedExecutor and pushed as they are committed.
+     */
+    @GetMapping(value = "/db/posts/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<PostDataChange>> getChanges(
+            @RequestParam(required = false) Long after,
+            @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        long afterSeq = lastEventId != null ? lastEventId : after != null ? after : -1;
+        return Flux.create(sink -> {
+            // the response is committed only by the first event, the comment sends the headers before any change
+            sink.next(ServerSentEvent.<PostDataChange>builder().comment("changes after " + afterSeq).build());
+            PostDataChangeFeed.Subscription subscription = changeFeed.subscribe(
+                    afterSeq,
+                    change -> sink.next(ServerSentEvent.builder(change)
+                            .id(Long.toString(change.getSeq()))
+                            .event(change.getType())
+                            .build()),
+                    sink::error);
+            sink.onDispose(subscription::cancel);
+        });
+    }
+
+    @GetMapping("/db/posts/search")
+    public Mono<PostDataSearchResponse> searchPosts(
+            @RequestParam String q,
+            @RequestParam(required = false, defaultValue = "20") int limit,
+            @RequestParam(required = false, defaultValue = "0") int offset) {
+        return onDb(() -> postDataService.searchPosts(q, limit, offset));
+    }
+
+    @GetMapping("/db/posts/{id}")
+    public Mono<PostDataResponse> getPostFromDB(@PathVariable int id) {
+        return onDb(() -> postDataService.getPostById(id));
+    }
+
+    @GetMapping("/db/users/{userId}/posts")
+    public Mono<PostDataJsonResponse> getPostsOfUser(
+            @PathVariable int userId,
+            PostDataQuery query,
+            @RequestParam(required = false) boolean skipUserId) {
+        return onDb(() -> postDataService.getPostsOfUser(userId, query, skipUserId));
+    }
+
+    @GetMapping("/db/users/counts")
+    public Mono<PostDataUserCountsResponse> getUserPostCounts() {
+        return onDb(postDataService::getUserPostCounts);
+    }
+
+    @GetMapping("/db/users/top")
+    public Mono<PostDataUserCountsResponse> getTopUsers(
+            @RequestParam(required = false, defaultValue = "10") int limit) {
+        return onDb(() -> postDataService.getTopUsers(limit));
+    }
+
+    @GetMapping("/db/populate")
+    public Mono<ApiError> savePost() {
+        return onUpstream(postDataService::savePostsFromApiToDb);
+    }
+
+    @GetMapping("/db/sync")
+    public Mono<SyncRunResult> getLastSyncResult() {
+        return Mono.justOrEmpty(postDataService.getLastSyncResult());
+    }
+
+    @GetMapping("/db/sync/history")
+    public Mono<List<SyncRunResult>> getSyncHistory() {
+        return Mono.just(postDataService.getSyncHistory());
+    }
+
+    @PutMapping("/db/updatepost")
+    public Mono<ApiError> updatePost(@RequestBody PostData postData) {
+        return onDbAsync(() -> postDataService.updatePostAsync(postData, dbExecutor));
+    }
+
+    @GetMapping("/db/updateposts")
+    public Mono<ApiError> updatePosts() {
+        return onUpstream(postDataService::updatePostsFromApiToDb);
+    }
+
+    @DeleteMapping("/db/posts/{id}")
+    public Mono<ApiError> deletePost(@PathVariable int id) {
+        return onDbAsync(() -> postDataService.deletePostAsync(id, dbExecutor));
+    }
+
+    @PutMapping("/db/posts/batch")
+    public Mono<PostDataBulkResponse> updatePosts(@RequestBody List<PostData> postDataList) {
+        return onDb(() -> postDataService.updatePosts(postDataList));
+    }
+
+    @DeleteMapping("/db/posts/batch")
+    public Mono<PostDataBulkResponse> deletePosts(@RequestBody List<Integer> ids) {
+        return onDb(() -> postDataService.deletePosts(ids));
+    }
+
+    @GetMapping("/db/cache/stats")
+    public Mono<PostDataCacheStats> getCacheStats() {
+        return Mono.just(postDataService.getCacheStats());
+    }
+
+    /**
+     * @return - 503 with an ApiError status when the executor of the request is full.
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<ApiError> handleRejectedTask(RejectedExecutionException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(new ApiError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Too many requests in progress, try again later."));
+    }
+
+    /**
+     * @param query - query of the page, its limit is replaced by the page size.
+     * @param remaining - posts left until the limit of the whole stream, negative when there is no limit.
+     */
+    private Mono<PostDataPage> readPage(PostDataQuery query, int remaining) {
+        PostDataQuery pageQuery = query.copy();
+        pageQuery.setLimit(remaining >= 0 ? Math.min(pageSize, remaining) : pageSize);
+        return onDb(() -> {
+            PostDataJsonResponse response = postDataDao.getPostsFromDb(pageQuery);
+            if (response.getApiError().code != 200) {
+                throw new SQLException(response.getApiError().message, null, response.getApiError().code);
+            }
+            return new PostDataPage(pageQuery, response.getPostDataList(), remaining);
+        });
+    }
+
+    private <T> Mono<T> onDb(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(dbScheduler);
+    }
+
+    // subscribed on the dbScheduler, so a caller waiting for room in the write-behind buffer never blocks the event loop
+    private <T> Mono<T> onDbAsync(Supplier<CompletableFuture<T>> call) {
+        return Mono.defer(() -> Mono.fromFuture(call.get())).subscribeOn(dbScheduler);
+    }
+
+    private <T> Mono<T> onUpstream(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(upstreamScheduler);
+    }
+
+    private String toJson(PostData postData) {
+        try {
+            return writer.writeValueAsString(postData);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class PostDataPage {
+
+        private final PostDataQuery query;
+        private final List<PostData> posts;
+        private final int remaining;
+
+        PostDataPage(PostDataQuery query, List<PostData> posts, int remaining) {
+            this.query = query;
+            this.posts = posts;
+            this.remaining = remaining >= 0 ? remaining - posts.size() : remaining;
+        }
+
+        boolean hasNext() {
+            return posts.size() == query.getLimit() && remaining != 0;
+        }
+
+        /**
+         * @return - query of the posts after the last post of this page, in the same order.
+         */
+        PostDataQuery nextQuery() {
+            PostData last = posts.get(posts.size() - 1);
+            PostDataQuery next = query.copy();
+            next.setOffset(null);
+            next.setAfterId(last.getId());
+            next.setAfterTitle(query.isOrderedByTitle() ? last.getTitle() : null);
+            return next;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.apzumi.postsdataapplication;
+
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Runs the "reactive" profile on Netty. Tomcat is on the classpath for the servlet stack
+ * and would be picked for the reactive server as well without this factory.
+ */
+@Profile("reactive")
+@Configuration
+public class ReactiveServerConfig {
+
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+}
@@ -5,33 +5,51 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.client.ExpectedCount;
 import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
 
 @ExtendWith(SpringExtension.class)
-@SpringBootTest
+@SpringBootTest(properties = {
+		"posts.datasource.url=jdbc:sqlite:target/posts-test.db",
+		"posts.sync.enabled=false"})
 class ApplicationTests {
 
 	private final String URL = "https://jsonplaceholder.typicode.com/posts";
 
 	@Autowired
 	private RestTemplate restTemplate;
+	@Autowired
+	private PrometheusMeterRegistry prometheusMeterRegistry;
 	private PostDataController controller;
 	private PostDataService postDataService;
 
@@ -75,7 +93,7 @@ class ApplicationTests {
 		postDataService.setRestTemplate(restTemplate);
 		controller = new PostDataController(postDataService);
 
-		PostDataJsonResponse actualResponse = controller.getPostsFromApi();
+		PostDataJsonResponse actualResponse = controller.getPostsFromApi().join();
 
 		assertEquals(expectedResponse.getPostDataList(), actualResponse.getPostDataList());
 		assertEquals(expectedResponse.getApiError().code, actualResponse.getApiError().code);
@@ -106,13 +124,111 @@ class ApplicationTests {
 		postDataService.setRestTemplate(restTemplate);
 		controller = new PostDataController(postDataService);
 
-		PostDataJsonResponse actualResponse = controller.getPostsFromApi();
+		PostDataJsonResponse actualResponse = controller.getPostsFromApi().join();
 
 		assertEquals(expectedResponse.getPostDataList(), actualResponse.getPostDataList());
 		assertEquals(expectedResponse.getApiError().code, actualResponse.getApiError().code);
 		assertEquals(expectedResponse.getApiError().message, actualResponse.getApiError().message);
 	}
 
+	@Test
+	void getPostsFromApiCachedPayload() throws JsonProcessingException {
+		PostData postData1 = new PostData(1, 1, "title", "body");
+		List<PostData> postDataList = new ArrayList<>();
+		postDataList.add(postData1);
+
+		mockServer.expect(ExpectedCount.once(), requestTo(URL))
+				.andRespond(withStatus(HttpStatus.OK)
+						.contentType(MediaType.APPLICATION_JSON)
+						.body(objectMapper.writeValueAsBytes(postDataList)));
+
+		postDataService = new PostDataService();
+		postDataService.setRestTemplate(restTemplate);
+		controller = new PostDataController(postDataService);
+
+		assertEquals(postDataList, controller.getPostsFromApi().join().getPostDataList());
+		assertEquals(postDataList, controller.getPostsFromApi().join().getPostDataList());
+		mockServer.verify();
+	}
+
+	@Test
+	void syncPostsFromApiNotModified() throws JsonProcessingException {
+		PostData postData1 = new PostData(1, 1, "title", "body");
+		List<PostData> postDataList = new ArrayList<>();
+		postDataList.add(postData1);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+
+		mockServer.expect(ExpectedCount.once(), requestTo(URL))
+				.andRespond(withStatus(HttpStatus.OK)
+						.contentType(MediaType.APPLICATION_JSON)
+						.headers(headers)
+						.body(objectMapper.writeValueAsBytes(postDataList)));
+		mockServer.expect(ExpectedCount.once(), requestTo(URL))
+				.andExpect(header(HttpHeaders.IF_NONE_MATCH, "\"v1\""))
+				.andRespond(withStatus(HttpStatus.NOT_MODIFIED));
+
+		Mockito.when(mockPostDataDao.getFingerprints()).thenReturn(new HashMap<>());
+		Mockito.when(mockPostDataDao.applyDiff(Mockito.any(PostDataDiff.class))).thenReturn(new ApiError());
+
+		postDataService = new PostDataService();
+		postDataService.setRestTemplate(restTemplate);
+		postDataService.setPostDataDao(mockPostDataDao);
+
+		SyncRunResult first = postDataService.syncPostsFromApiToDb();
+		SyncRunResult second = postDataService.syncPostsFromApiToDb();
+
+		assertEquals(1, first.getRowsInserted());
+		assertTrue(second.isUpstreamNotModified());
+		assertEquals(0, second.getRowsChanged());
+		assertEquals(200, second.getApiError().code);
+		assertEquals(2, postDataService.getSyncHistory().size());
+		Mockito.verify(mockPostDataDao, Mockito.times(1)).getFingerprints();
+		Mockito.verify(mockPostDataDao, Mockito.times(1)).applyDiff(Mockito.any(PostDataDiff.class));
+		mockServer.verify();
+	}
+
+	@Test
+	void scheduledSyncRetriesFailedRunsWithBackoff() {
+		PostDataService mockPostDataService = Mockito.mock(PostDataService.class);
+		Mockito.when(mockPostDataService.syncPostsFromApiToDb()).thenReturn(
+				new SyncRunResult(null, 0, 0, 0, 0, 0, false, new ApiError(503, "Service Unavailable")),
+				new SyncRunResult(null, 0, 0, 0, 0, 0, false, new ApiError(500, "Internal Server Error")),
+				new SyncRunResult(null, 0, 1, 1, 0, 0, false, new ApiError()));
+
+		new CyclicDownloader(mockPostDataService, true, "", 1000, 0, 0, 3, 1).runScheduledSync();
+		Mockito.verify(mockPostDataService, Mockito.times(3)).syncPostsFromApiToDb();
+
+		Mockito.when(mockPostDataService.syncPostsFromApiToDb()).thenReturn(
+				new SyncRunResult(null, 0, 0, 0, 0, 0, false, new ApiError(404, "Not Found")));
+		new CyclicDownloader(mockPostDataService, true, "", 1000, 0, 0, 3, 1).runScheduledSync();
+		Mockito.verify(mockPostDataService, Mockito.times(4)).syncPostsFromApiToDb();
+	}
+
+	@Test
+	void upstreamAndPoolMetricsAreScraped() throws JsonProcessingException {
+		byte[] body = objectMapper.writeValueAsBytes(new PostData[] {new PostData(1, 1, "title", "body")});
+		mockServer.expect(ExpectedCount.once(), requestTo(URL))
+				.andRespond(withStatus(HttpStatus.OK)
+						.contentType(MediaType.APPLICATION_JSON)
+						.body(body));
+
+		Timer fetchTimer = prometheusMeterRegistry.find("posts.api.fetch").tag("status", "200").timer();
+		long fetchesBefore = fetchTimer == null ? 0 : fetchTimer.count();
+
+		postDataService = new PostDataService();
+		postDataService.setRestTemplate(restTemplate);
+		postDataService.getPostsFromApi();
+
+		assertEquals(fetchesBefore + 1,
+				prometheusMeterRegistry.get("posts.api.fetch").tag("status", "200").timer().count());
+		String scrape = prometheusMeterRegistry.scrape();
+		assertTrue(scrape.contains("posts_api_fetch_seconds_bucket{application=\"postsapplication\",status=\"200\""));
+		assertTrue(scrape.contains("posts_api_bytes_sum{application=\"postsapplication\",status=\"200\",}"));
+		assertTrue(scrape.contains("posts_db_connections_max{application=\"postsapplication\",lane=\"reader\",} 4.0"));
+		mockServer.verify();
+	}
+
 	@Test
 	void getPostsFromDaoSuccess() {
 
@@ -130,12 +246,14 @@ class ApplicationTests {
 		postDataList.add(postData3);
 		PostDataJsonResponse expectedResponse = new PostDataJsonResponse(postDataList, status);
 
-		Mockito.when(mockPostDataDao.getPostsFromDb()).thenReturn(expectedResponse);
+		Mockito.when(mockPostDataDao.getPostsFromDb(Mockito.any(PostDataQuery.class))).thenReturn(expectedResponse);
 
 		postDataService = new PostDataService();
 		postDataService.setPostDataDao(mockPostDataDao);
 		controller = new PostDataController(postDataService);
-		PostDataJsonResponse actualResponse = controller.getPostsFromDB(filterTitle, skipUserId);
+		PostDataQuery query = new PostDataQuery();
+		query.setFilterTitle(filterTitle);
+		PostDataJsonResponse actualResponse = controller.getPostsFromDB(query, skipUserId).join();
 
 		assertEquals(expectedResponse.getPostDataList(), actualResponse.getPostDataList());
 		assertEquals(expectedResponse.getApiError().code, actualResponse.getApiError().code);
@@ -161,12 +279,14 @@ class ApplicationTests {
 		postDataList.add(postData4);
 		PostDataJsonResponse expectedResponse = new PostDataJsonResponse(postDataList, status);
 
-		Mockito.when(mockPostDataDao.getPostsFromDb()).thenReturn(expectedResponse);
+		Mockito.when(mockPostDataDao.getPostsFromDb(Mockito.any(PostDataQuery.class))).thenReturn(expectedResponse);
 
 		postDataService = new PostDataService();
 		postDataService.setPostDataDao(mockPostDataDao);
 		controller = new PostDataController(postDataService);
-		PostDataJsonResponse actualResponse = controller.getPostsFromDB(filterTitle, skipUserId);
+		PostDataQuery query = new PostDataQuery();
+		query.setFilterTitle(filterTitle);
+		PostDataJsonResponse actualResponse = controller.getPostsFromDB(query, skipUserId).join();
 
 		assertEquals(expectedResponse.getPostDataList(), actualResponse.getPostDataList());
 		assertEquals(expectedResponse.getApiError().code, actualResponse.getApiError().code);
@@ -192,12 +312,14 @@ class ApplicationTests {
 		postDataList.add(postData4);
 		PostDataJsonResponse expectedResponse = new PostDataJsonResponse(postDataList, status);
 
-		Mockito.when(mockPostDataDao.getPostsFromDb()).thenReturn(expectedResponse);
+		Mockito.when(mockPostDataDao.getPostsFromDb(Mockito.any(PostDataQuery.class))).thenReturn(expectedResponse);
 
 		postDataService = new PostDataService();
 		postDataService.setPostDataDao(mockPostDataDao);
 		controller = new PostDataController(postDataService);
-		PostDataJsonResponse actualResponse = controller.getPostsFromDB(filterTitle, skipUserId);
+		PostDataQuery query = new PostDataQuery();
+		query.setFilterTitle(filterTitle);
+		PostDataJsonResponse actualResponse = controller.getPostsFromDB(query, skipUserId).join();
 
 		assertEquals(expectedResponse.getPostDataList(), actualResponse.getPostDataList());
 		assertEquals(expectedResponse.getApiError().code, actualResponse.getApiError().code);
@@ -215,18 +337,112 @@ class ApplicationTests {
 
 		PostDataJsonResponse expectedResponse = new PostDataJsonResponse(postDataList, status);
 
-		Mockito.when(mockPostDataDao.getPostsFromDb()).thenReturn(expectedResponse);
+		Mockito.when(mockPostDataDao.getPostsFromDb(Mockito.any(PostDataQuery.class))).thenReturn(expectedResponse);
 
 		postDataService = new PostDataService();
 		postDataService.setPostDataDao(mockPostDataDao);
 		controller = new PostDataController(postDataService);
-		PostDataJsonResponse actualResponse = controller.getPostsFromDB(filterTitle, skipUserId);
+		PostDataQuery query = new PostDataQuery();
+		query.setFilterTitle(filterTitle);
+		PostDataJsonResponse actualResponse = controller.getPostsFromDB(query, skipUserId).join();
 
 		assertEquals(expectedResponse.getPostDataList(), actualResponse.getPostDataList());
 		assertEquals(expectedResponse.getApiError().code, actualResponse.getApiError().code);
 		assertEquals(expectedResponse.getApiError().message, actualResponse.getApiError().message);
 	}
 
+	@Test
+	void getSerializedPostsFromDaoNotModified() throws IOException {
+
+		PostData postData1 = new PostData(9999, 99, "newtitle", "newbody");
+		PostData postData2 = new PostData(100, 100, "ęśąćż", "ęśąćż");
+		ApiError status = new ApiError();
+		List<PostData> postDataList = new ArrayList<>();
+
+		postDataList.add(postData1);
+		postDataList.add(postData2);
+		PostDataJsonResponse expectedResponse = new PostDataJsonResponse(postDataList, status);
+
+		Mockito.when(mockPostDataDao.getPostsFromDb(Mockito.any(PostDataQuery.class))).thenReturn(expectedResponse);
+		Mockito.when(mockPostDataDao.getTableVersion()).thenReturn(1L);
+
+		postDataService = new PostDataService();
+		postDataService.setPostDataDao(mockPostDataDao);
+		postDataService.setResponseCache(new PostDataResponseCache(mockPostDataDao, 1024));
+		controller = new PostDataController(postDataService);
+
+		ResponseEntity<byte[]> actualResponse = controller.getSerializedPostsFromDB(
+				"", false, new ServletWebRequest(new MockHttpServletRequest("GET", "/db/posts"))).join();
+
+		assertEquals(HttpStatus.OK, actualResponse.getStatusCode());
+		assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(expectedResponse)),
+				objectMapper.readTree(actualResponse.getBody()));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/db/posts");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		request.addHeader("If-None-Match", actualResponse.getHeaders().getETag());
+		assertNull(controller.getSerializedPostsFromDB("", false, new ServletWebRequest(request, response)).join());
+		assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+		Mockito.verify(mockPostDataDao, Mockito.times(1)).getPostsFromDb(Mockito.any(PostDataQuery.class));
+
+		Mockito.when(mockPostDataDao.getTableVersion()).thenReturn(2L);
+		controller.getSerializedPostsFromDB("", false, new ServletWebRequest(new MockHttpServletRequest("GET", "/db/posts"))).join();
+		Mockito.verify(mockPostDataDao, Mockito.times(2)).getPostsFromDb(Mockito.any(PostDataQuery.class));
+	}
+
+	@Test
+	void getSerializedPostsInBinaryFormatsAndGzip() throws IOException {
+
+		List<PostData> postDataList = new ArrayList<>();
+		for (int i = 1; i <= 100; i++) {
+			postDataList.add(new PostData(i % 10, i, "title " + i, "body " + i));
+		}
+		PostDataJsonResponse expectedResponse = new PostDataJsonResponse(postDataList, new ApiError());
+		Mockito.when(mockPostDataDao.getPostsFromDb(Mockito.any(PostDataQuery.class))).thenReturn(expectedResponse);
+		Mockito.when(mockPostDataDao.getTableVersion()).thenReturn(1L);
+
+		postDataService = new PostDataService();
+		postDataService.setPostDataDao(mockPostDataDao);
+		postDataService.setResponseCache(new PostDataResponseCache(mockPostDataDao, 1 << 20));
+		controller = new PostDataController(postDataService);
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/db/posts");
+		request.addHeader(HttpHeaders.ACCEPT, "application/json;q=0.5, application/cbor");
+		request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+		ResponseEntity<byte[]> cborResponse = controller.getSerializedPostsFromDB(
+				"", false, new ServletWebRequest(request)).join();
+		assertEquals(PostDataFormat.CBOR.getMediaType(), cborResponse.getHeaders().getContentType());
+		assertEquals("gzip", cborResponse.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		byte[] cbor = new GZIPInputStream(new ByteArrayInputStream(cborResponse.getBody())).readAllBytes();
+		assertEquals(objectMapper.valueToTree(expectedResponse), PostDataFormat.CBOR.getObjectMapper().readTree(cbor));
+
+		request = new MockHttpServletRequest("GET", "/db/posts");
+		request.addHeader(HttpHeaders.ACCEPT, PostDataFormat.SMILE_VALUE);
+		ResponseEntity<byte[]> smileResponse = controller.getSerializedPostsFromDB(
+				"", false, new ServletWebRequest(request)).join();
+		assertNull(smileResponse.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(objectMapper.valueToTree(expectedResponse),
+				PostDataFormat.SMILE.getObjectMapper().readTree(smileResponse.getBody()));
+
+		request = new MockHttpServletRequest("GET", "/db/posts");
+		request.addHeader(HttpHeaders.ACCEPT, "*/*");
+		ResponseEntity<byte[]> jsonResponse = controller.getSerializedPostsFromDB(
+				"", false, new ServletWebRequest(request)).join();
+		assertEquals(MediaType.APPLICATION_JSON, jsonResponse.getHeaders().getContentType());
+		assertTrue(smileResponse.getBody().length < jsonResponse.getBody().length);
+		assertTrue(cborResponse.getBody().length < cbor.length);
+		assertTrue(!jsonResponse.getHeaders().getETag().equals(smileResponse.getHeaders().getETag()));
+		Mockito.verify(mockPostDataDao, Mockito.times(3)).getPostsFromDb(Mockito.any(PostDataQuery.class));
+
+		assertTrue(WebUtils.acceptsGzip("deflate, GZIP;q=0.8"));
+		assertTrue(WebUtils.acceptsGzip("*"));
+		assertTrue(!WebUtils.acceptsGzip("gzip;q=0"));
+		assertTrue(!WebUtils.acceptsGzip("br"));
+		assertEquals(PostDataFormat.JSON, PostDataFormat.negotiate(null));
+		assertEquals(PostDataFormat.JSON, PostDataFormat.negotiate("application/*"));
+		assertEquals(PostDataFormat.SMILE, PostDataFormat.negotiate("application/cbor;q=0.1, application/x-jackson-smile"));
+	}
+
 	@Test
 	void updateAllThePostsFromApiToDbSuccess() {
 
@@ -251,19 +467,17 @@ class ApplicationTests {
 			System.out.println(e.getMessage());
 		}
 
-		Mockito.when(mockPostDataDao.updatePost(postData1)).thenReturn(status);
+		Mockito.when(mockPostDataDao.updateAll(postDataList))
+				.thenReturn(new PostDataBulkResponse(new int[]{1, 1, 1}, 3, status));
 
 		postDataService = new PostDataService();
 		postDataService.setRestTemplate(restTemplate);
 		postDataService.setPostDataDao(mockPostDataDao);
 		controller = new PostDataController(postDataService);
 
-		ArgumentCaptor<PostData> argument = ArgumentCaptor.forClass(PostData.class);
-
-		controller.updatePosts();
-		Mockito.verify(mockPostDataDao).updatePost(postData1);
-		Mockito.verify(mockPostDataDao).updatePost(postData2);
-		Mockito.verify(mockPostDataDao).updatePost(postData3);
+		assertEquals(200, controller.updatePosts().join().code);
+		Mockito.verify(mockPostDataDao).updateAll(postDataList);
+		Mockito.verify(mockPostDataDao, Mockito.never()).updatePost(Mockito.any(PostData.class));
 	}
 
 	@Test
@@ -280,7 +494,7 @@ class ApplicationTests {
 
 		ArgumentCaptor<PostData> argument = ArgumentCaptor.forClass(PostData.class);
 
-		controller.deletePost(id);
+		controller.deletePost(id).join();
 		Mockito.verify(mockPostDataDao).deletePost(id);
 	}
 
@@ -0,0 +1,226 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the application on a small Tomcat pool against a local API stub which answers after UPSTREAM_LATENCY_MS,
+ * and checks that the database reads keep their latency while the API requests pile up,
+ * that the open change feed streams don't hold the request threads,
+ * and that the exports stalled by their clients leave reader connections to the other reads
+ * and give their permits back once the clients are gone.
+ */
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = {
+				"posts.datasource.url=jdbc:sqlite:target/posts-load-test.db",
+				"posts.sync.enabled=false",
+				"posts.api.cache-ttl=0",
+				"server.tomcat.threads.max=8",
+				"posts.executor.upstream.pool-size=4",
+				"posts.executor.upstream.queue-capacity=100",
+				"posts.executor.export.pool-size=2",
+				"posts.executor.export.queue-capacity=0"})
+class PostDataControllerLoadTests {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PostDataControllerLoadTests.class);
+	private static final long UPSTREAM_LATENCY_MS = 1000;
+	private static final int UPSTREAM_REQUESTS = 24;
+	private static final int DB_REQUESTS = 20;
+	private static final int SUBSCRIBERS = 16;
+	private static final int EXPORTED_POSTS = 40_000;
+
+	private static final HttpServer upstream = startUpstream();
+
+	@LocalServerPort
+	private int port;
+	@Autowired
+	private PostDataDaoInterface postDataDao;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@DynamicPropertySource
+	static void upstreamUrl(DynamicPropertyRegistry registry) {
+		registry.add("posts.api.url", () -> "http://localhost:" + upstream.getAddress().getPort() + "/posts");
+	}
+
+	@AfterAll
+	static void stopUpstream() {
+		upstream.stop(0);
+	}
+
+	@Test
+	void slowUpstreamDoesNotDelayDatabaseReads() throws Exception {
+		HttpClient client = HttpClient.newBuilder().executor(Executors.newCachedThreadPool()).build();
+		// warm up the database path, so only the waiting behind the API requests is measured
+		for (int i = 0; i < DB_REQUESTS; i++) {
+			client.send(get("/db/posts?userId=1&limit=10"), HttpResponse.BodyHandlers.ofString());
+		}
+
+		List<CompletableFuture<HttpResponse<String>>> upstreamResponses = new ArrayList<>();
+		for (int i = 0; i < UPSTREAM_REQUESTS; i++) {
+			upstreamResponses.add(client.sendAsync(get("/api/posts"), HttpResponse.BodyHandlers.ofString()));
+		}
+		Thread.sleep(UPSTREAM_LATENCY_MS / 4);
+
+		List<Long> latencies = new ArrayList<>();
+		for (int i = 0; i < DB_REQUESTS; i++) {
+			long start = System.nanoTime();
+			HttpResponse<String> response = client.send(get("/db/posts?userId=1&limit=10"), HttpResponse.BodyHandlers.ofString());
+			latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			assertEquals(200, response.statusCode());
+		}
+		boolean upstreamStillBusy = upstreamResponses.stream().anyMatch(future -> !future.isDone());
+
+		for (CompletableFuture<HttpResponse<String>> response : upstreamResponses) {
+			assertEquals(200, response.get(60, TimeUnit.SECONDS).statusCode());
+		}
+		long maxLatency = Collections.max(latencies);
+		LOGGER.info("{} slow API requests in flight: /db/posts latencies {} ms", UPSTREAM_REQUESTS, latencies);
+
+		assertTrue(upstreamStillBusy);
+		assertTrue(maxLatency < UPSTREAM_LATENCY_MS / 2);
+	}
+
+	@Test
+	void changeFeedSubscribersDoNotHoldRequestThreads() throws Exception {
+		HttpClient client = HttpClient.newBuilder().executor(Executors.newCachedThreadPool()).build();
+		postDataDao.saveAll(Collections.singletonList(new PostData(1, 1, "title", "body")));
+		long lastSeq = postDataDao.getChanges(-1, 0).getLastSeq();
+
+		// twice as many open streams as the Tomcat threads
+		List<HttpResponse<Stream<String>>> subscribers = new ArrayList<>();
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			subscribers.add(client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/db/posts/changes"))
+							.header("Last-Event-ID", Long.toString(lastSeq))
+							.build(),
+					HttpResponse.BodyHandlers.ofLines()));
+		}
+		assertEquals(200, client.send(get("/db/posts?userId=1&limit=10"), HttpResponse.BodyHandlers.ofString()).statusCode());
+		postDataDao.updatePost(new PostData(1, 1, "changed after " + lastSeq, "body"));
+
+		for (HttpResponse<Stream<String>> subscriber : subscribers) {
+			assertEquals(200, subscriber.statusCode());
+			try (Stream<String> lines = subscriber.body()) {
+				List<String> event = CompletableFuture.supplyAsync(() -> lines
+						.filter(line -> !line.isEmpty() && !line.startsWith(":"))
+						.limit(3)
+						.collect(Collectors.toList()))
+						.get(10, TimeUnit.SECONDS);
+				assertEquals("id:" + (lastSeq + 1), event.get(0));
+				assertEquals("event:update", event.get(1));
+				assertEquals("changed after " + lastSeq,
+						objectMapper.readValue(event.get(2).substring("data:".length()), PostDataChange.class)
+								.getPostData().getTitle());
+			}
+		}
+	}
+
+	@Test
+	void stalledExportsLeaveReadersToTheOtherReads() throws Exception {
+		HttpClient client = HttpClient.newBuilder().executor(Executors.newCachedThreadPool()).build();
+		// tens of megabytes of posts, far more than the socket buffers of a client which stops reading
+		List<PostData> postDataList = IntStream.rangeClosed(1, EXPORTED_POSTS)
+				.mapToObj(i -> new PostData(99, 1_000_000 + i, "exported", "x".repeat(1000)))
+				.collect(Collectors.toList());
+		postDataDao.saveAll(postDataList);
+		List<InputStream> exports = new ArrayList<>();
+		try {
+			// as many exports as the export executor runs, each stalled after its first post with a reader connection
+			for (int i = 0; i < 2; i++) {
+				HttpResponse<InputStream> export = client.send(get("/db/posts/stream"), HttpResponse.BodyHandlers.ofInputStream());
+				assertEquals(200, export.statusCode());
+				exports.add(export.body());
+				new BufferedReader(new InputStreamReader(export.body(), StandardCharsets.UTF_8)).readLine();
+			}
+
+			assertEquals(503, client.send(get("/db/posts/stream"), HttpResponse.BodyHandlers.ofString()).statusCode());
+			for (int i = 0; i < DB_REQUESTS; i++) {
+				HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+								URI.create("http://localhost:" + port + "/db/posts?userId=1&limit=10"))
+								.timeout(Duration.ofSeconds(10))
+								.build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, response.statusCode());
+			}
+
+			// the permits of the exports are given back once their clients are gone
+			for (InputStream export : exports) {
+				export.close();
+			}
+			HttpClient nextClient = HttpClient.newBuilder().executor(Executors.newCachedThreadPool()).build();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			int status;
+			do {
+				status = nextClient.send(get("/db/posts/stream"), HttpResponse.BodyHandlers.discarding()).statusCode();
+			} while (status == 503 && System.nanoTime() < deadline);
+			assertEquals(200, status);
+		} finally {
+			for (InputStream export : exports) {
+				export.close();
+			}
+			postDataDao.deleteAll(postDataList.stream().map(PostData::getId).collect(Collectors.toList()));
+		}
+	}
+
+	private HttpRequest get(String path) {
+		return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).GET().build();
+	}
+
+	private static HttpServer startUpstream() {
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			byte[] body = "[{\"userId\":1,\"id\":1,\"title\":\"title\",\"body\":\"body\"}]".getBytes(StandardCharsets.UTF_8);
+			server.createContext("/posts", exchange -> {
+				try {
+					Thread.sleep(UPSTREAM_LATENCY_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream outputStream = exchange.getResponseBody()) {
+					outputStream.write(body);
+				}
+			});
+			server.setExecutor(Executors.newCachedThreadPool());
+			server.start();
+			return server;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
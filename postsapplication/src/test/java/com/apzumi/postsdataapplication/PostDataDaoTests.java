@@ -0,0 +1,1226 @@
+package com.apzumi.postsdataapplication;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.headerDoesNotExist;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+class PostDataDaoTests {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PostDataDaoTests.class);
+	private static final int READ_POOL_SIZE = 4;
+	private static final String URL = "https://jsonplaceholder.typicode.com/posts";
+
+	@TempDir
+	Path tempDir;
+
+	private SqliteConnectionPool connectionPool;
+	private PostDataDao postDataDao;
+
+	@BeforeEach
+	public void setup() throws SQLException {
+		connectionPool = new SqliteConnectionPool(
+				"jdbc:sqlite:" + tempDir.resolve("posts.db"), READ_POOL_SIZE, 32, 5000);
+		new PostDataSchemaInitializer(connectionPool).initialize();
+		postDataDao = new PostDataDao(connectionPool);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		connectionPool.destroy();
+	}
+
+	@Test
+	void saveAndDeletePostSuccess() {
+		PostData postData = new PostData(100, 100, "ęśąćż", "ęśąćż");
+
+		assertEquals(200, postDataDao.savePost(postData).code);
+		assertEquals(Collections.singletonList(postData), postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+
+		assertEquals(200, postDataDao.deletePost(100).code);
+		assertTrue(postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList().isEmpty());
+	}
+
+	@Test
+	void updatePostAndGetPostById() {
+		postDataDao.saveAll(posts(5));
+		PostData postData = new PostData(7, 3, "new title", "new body");
+
+		assertEquals(200, postDataDao.updatePost(postData).code);
+		PostDataResponse response = postDataDao.getPostById(3);
+		assertEquals(200, response.getApiError().code);
+		assertEquals(postData, response.getPostData());
+
+		assertEquals(404, postDataDao.updatePost(new PostData(1, 6, "title", "body")).code);
+		response = postDataDao.getPostById(6);
+		assertEquals(404, response.getApiError().code);
+		assertNull(response.getPostData());
+		assertEquals(5, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList().size());
+	}
+
+	@Test
+	void schemaInitializerMigratesTableWithoutPrimaryKey() throws SQLException {
+		connectionPool.destroy();
+		connectionPool = new SqliteConnectionPool(
+				"jdbc:sqlite:" + tempDir.resolve("posts-old.db"), READ_POOL_SIZE, 32, 5000);
+		try (PooledConnection connection = connectionPool.getWriteConnection()) {
+			connection.prepareStatement("CREATE TABLE posts (userId INTEGER, id INTEGER, title TEXT, body TEXT)")
+					.executeUpdate();
+			connection.prepareStatement("INSERT INTO posts VALUES (1, 1, 'old', 'old'), (2, 2, 'title 2', 'body 2'), "
+					+ "(1, 1, 'title 1', 'body 1')").executeUpdate();
+		}
+
+		new PostDataSchemaInitializer(connectionPool).initialize();
+		new PostDataSchemaInitializer(connectionPool).initialize();
+		postDataDao = new PostDataDao(connectionPool);
+
+		assertEquals(posts(2), postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+		try (PooledConnection connection = connectionPool.getReadConnection()) {
+			ResultSet version = connection.prepareStatement("PRAGMA user_version").executeQuery();
+			assertEquals(PostDataSchemaInitializer.SCHEMA_VERSION, version.getInt(1));
+			ResultSet journalMode = connection.prepareStatement("PRAGMA journal_mode").executeQuery();
+			assertEquals("wal", journalMode.getString(1));
+		}
+		assertEquals(Arrays.asList(new PostDataUserCount(1, 1), new PostDataUserCount(2, 1)),
+				postDataDao.getUserPostCounts().getUserCounts());
+		assertEquals(404, postDataDao.updatePost(new PostData(1, 3, "title 3", "body 3")).code);
+		assertEquals(200, postDataDao.savePost(new PostData(2, 2, "new title 2", "body 2")).code);
+		assertEquals(2, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList().size());
+	}
+
+	@Test
+	void userPostCountsFollowEveryWrite() throws SQLException {
+		postDataDao.saveAll(posts(1000));
+		assertEquals(groupPostsByUser(), postDataDao.getUserPostCounts().getUserCounts());
+
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			int id = random.nextInt(1200) + 1;
+			PostData postData = new PostData(random.nextInt(20), id, "title " + id, "body " + random.nextInt(3));
+			switch (i % 6) {
+				case 0: postDataDao.savePost(postData); break;
+				case 1: postDataDao.updatePost(postData); break;
+				case 2: postDataDao.deletePost(id); break;
+				case 3: postDataDao.updateAll(Arrays.asList(postData, new PostData(7, id + 1, "title", "body"))); break;
+				case 4: postDataDao.deleteAll(Arrays.asList(id, id + 1)); break;
+				default: postDataDao.saveAll(Arrays.asList(postData, new PostData(3, id + 2, "title", "body")));
+			}
+		}
+		List<PostData> fetched = posts(500);
+		fetched.add(new PostData(42, 2000, "title", "body"));
+		assertEquals(200, postDataDao.applyDiff(PostDataDiff.compute(fetched, postDataDao.getFingerprints())).code);
+		// a failed bulk write is rolled back together with its count changes
+		try (PooledConnection connection = connectionPool.getWriteConnection()) {
+			connection.prepareStatement(
+					"CREATE TRIGGER reject_title AFTER UPDATE ON posts WHEN NEW.title = 'rejected' "
+							+ "BEGIN SELECT RAISE(ABORT, 'rejected title'); END")
+					.executeUpdate();
+		}
+		assertTrue(postDataDao.updateAll(Arrays.asList(
+				new PostData(5, 1, "title", "body"), new PostData(5, 2, "rejected", "body"))).getApiError().code != 200);
+
+		List<PostDataUserCount> userCounts = postDataDao.getUserPostCounts().getUserCounts();
+		assertEquals(groupPostsByUser(), userCounts);
+		List<PostDataUserCount> topUsers = new ArrayList<>(userCounts);
+		topUsers.sort((a, b) -> a.getPosts() != b.getPosts()
+				? Long.compare(b.getPosts(), a.getPosts()) : Integer.compare(a.getUserId(), b.getUserId()));
+		assertEquals(topUsers.subList(0, 3), postDataDao.getTopUsers(3).getUserCounts());
+		assertEquals(new PostDataUserCount(42, 1), userCounts.get(userCounts.size() - 1));
+	}
+
+	@Test
+	void searchPostsRanksFoldsDiacriticsAndFollowsWrites() {
+		postDataDao.saveAll(posts(100));
+		postDataDao.savePost(new PostData(1, 101, "zażółć ęśąćż", "gęślą jaźń"));
+		postDataDao.savePost(new PostData(2, 102, "other title", "body with ęśąćż inside"));
+
+		PostDataSearchResponse response = postDataDao.searchPosts("ESACZ", 10, 0);
+		assertEquals(200, response.getApiError().code);
+		assertEquals(Arrays.asList(101, 102), searchIds(response));
+		assertEquals("zażółć <b>ęśąćż</b>", response.getHits().get(0).getSnippet());
+		assertTrue(response.getHits().get(0).getRank() < response.getHits().get(1).getRank());
+		assertEquals(Collections.singletonList(101), searchIds(postDataDao.searchPosts("gęślą zazółć", 10, 0)));
+
+		assertEquals(searchIds(postDataDao.searchPosts("body", 100, 0)).subList(2, 4),
+				searchIds(postDataDao.searchPosts("body", 2, 2)));
+		assertEquals(200, postDataDao.searchPosts("\"title\" OR NEAR(", 10, 0).getApiError().code);
+		assertEquals(400, postDataDao.searchPosts("  ", 10, 0).getApiError().code);
+
+		postDataDao.updatePost(new PostData(1, 101, "renamed", "gęślą jaźń"));
+		postDataDao.saveAll(Collections.singletonList(new PostData(2, 102, "other title", "plain body")));
+		assertTrue(postDataDao.searchPosts("ęśąćż", 10, 0).getHits().isEmpty());
+		assertEquals(Collections.singletonList(101), searchIds(postDataDao.searchPosts("renamed", 10, 0)));
+		postDataDao.deletePost(101);
+		postDataDao.deleteAll(Collections.singletonList(102));
+		assertTrue(postDataDao.searchPosts("renamed", 10, 0).getHits().isEmpty());
+		assertTrue(postDataDao.searchPosts("plain", 10, 0).getHits().isEmpty());
+		assertEquals(Collections.singletonList(7), searchIds(postDataDao.searchPosts("title 7", 1, 0)));
+	}
+
+	@Test
+	void getPostsFromDbFillsColumnsWhichSerializeLikeThePosts() throws IOException {
+		List<PostData> postDataList = posts(300);
+		// a body longer than a page of the columns, so the rows around it are in three pages
+		postDataList.add(new PostData(0, 301, "", "long body ".repeat(10_000)));
+		postDataList.add(new PostData(7, 302, null, "ęśąćż \"quoted\"\n"));
+		postDataDao.saveAll(postDataList);
+
+		List<PostData> columns = postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList();
+		assertTrue(columns instanceof PostDataColumns);
+		assertEquals(postDataList, columns);
+		assertEquals(postDataList, new ArrayList<>(columns));
+		for (PostDataFormat format : PostDataFormat.values()) {
+			ObjectMapper objectMapper = format.getObjectMapper();
+			assertArrayEquals(objectMapper.writeValueAsBytes(new PostDataJsonResponse(postDataList, new ApiError())),
+					objectMapper.writeValueAsBytes(new PostDataJsonResponse(columns, new ApiError())), format.name());
+		}
+
+		PostDataColumns withoutUserIds = ((PostDataColumns) columns).withoutUserIds();
+		assertEquals(new PostData(0, 302, null, "ęśąćż \"quoted\"\n"), withoutUserIds.get(301));
+		assertEquals(7, ((PostDataColumns) columns).getUserId(301));
+		assertThrows(UnsupportedOperationException.class, () -> columns.set(0, new PostData()));
+		assertThrows(IndexOutOfBoundsException.class, () -> columns.get(302));
+	}
+
+	@Test
+	void columnsStartingWithEmptyTextsSerializeLikeThePosts() throws IOException {
+		List<PostData> postDataList = List.of(new PostData(1, 1, "", ""), new PostData(1, 2, null, null),
+				new PostData(1, 3, "t", "b"), new PostData(2, 4, "", ""));
+		PostDataColumns.Builder builder = new PostDataColumns.Builder();
+		postDataList.forEach(builder::add);
+		PostDataColumns columns = builder.build();
+
+		assertEquals(postDataList, columns);
+		assertEquals(new PostData(1, 1, "", ""), columns.get(0));
+		for (PostDataFormat format : PostDataFormat.values()) {
+			ObjectMapper objectMapper = format.getObjectMapper();
+			assertArrayEquals(objectMapper.writeValueAsBytes(new PostDataJsonResponse(postDataList, new ApiError())),
+					objectMapper.writeValueAsBytes(new PostDataJsonResponse(columns, new ApiError())), format.name());
+		}
+		assertEquals(List.of(new PostData(1, 1, "", "")),
+				new PostDataColumns.Builder().add(new PostData(1, 1, "", "")).build());
+	}
+
+	@Test
+	void saveAllReturnsStatusOfEveryChunk() {
+		postDataDao.setBatchSize(2);
+		List<PostData> postDataList = posts(5);
+
+		PostDataBatchResponse response = postDataDao.saveAll(postDataList);
+
+		assertEquals(200, response.getApiError().code);
+		assertEquals(3, response.getChunks().size());
+		assertEquals(4, response.getChunks().get(2).getFirstIndex());
+		assertEquals(1, response.getChunks().get(2).getRows());
+		assertEquals(postDataList, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+	}
+
+	@Test
+	void saveAllWritesEveryRowInBatches() {
+		List<PostData> postDataList = posts(2_500);
+
+		PostDataBatchResponse response = postDataDao.saveAll(postDataList);
+
+		assertEquals(200, response.getApiError().code);
+		assertEquals(3, response.getChunks().size());
+		assertEquals(500, response.getChunks().get(2).getRows());
+		assertEquals(postDataList, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+	}
+
+	@Test
+	void saveAllRollsBackOnlyTheFailedChunk() throws SQLException {
+		postDataDao.setBatchSize(2);
+		try (PooledConnection connection = connectionPool.getWriteConnection()) {
+			connection.prepareStatement(
+					"CREATE TRIGGER reject_title AFTER INSERT ON posts WHEN NEW.title = 'rejected' "
+							+ "BEGIN SELECT RAISE(ABORT, 'rejected title'); END")
+					.executeUpdate();
+		}
+		List<PostData> postDataList = posts(5);
+		postDataList.set(3, new PostData(4, 4, "rejected", "body 4"));
+
+		PostDataBatchResponse response = postDataDao.saveAll(postDataList);
+
+		assertTrue(response.getApiError().code != 200);
+		assertEquals(200, response.getChunks().get(0).getApiError().code);
+		assertTrue(response.getChunks().get(1).getApiError().code != 200);
+		assertEquals(200, response.getChunks().get(2).getApiError().code);
+		assertEquals(Arrays.asList(postDataList.get(0), postDataList.get(1), postDataList.get(4)),
+				postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+	}
+
+	@Test
+	void bulkUpdateAndDeleteReturnResultOfEveryItem() {
+		postDataDao.setBatchSize(2);
+		postDataDao.saveAll(posts(5));
+		CachingPostDataDao cachingDao = new CachingPostDataDao(postDataDao, 100);
+		PostDataQuery userTwo = new PostDataQuery();
+		userTwo.setUserId(2);
+		assertEquals(Collections.singletonList(2), ids(cachingDao.getPostsFromDb(userTwo)));
+
+		PostDataBulkResponse updateResponse = cachingDao.updateAll(Arrays.asList(
+				new PostData(7, 2, "new title 2", "new body 2"),
+				new PostData(7, 9, "title 9", "body 9"),
+				new PostData(3, 3, "new title 3", "new body 3")));
+		assertEquals(200, updateResponse.getApiError().code);
+		assertArrayEquals(new int[]{1, 0, 1}, updateResponse.getResults());
+		assertEquals(2, updateResponse.getRows());
+		assertTrue(cachingDao.getPostsFromDb(userTwo).getPostDataList().isEmpty());
+		PostDataQuery userSeven = new PostDataQuery();
+		userSeven.setUserId(7);
+		assertEquals(Collections.singletonList(new PostData(7, 2, "new title 2", "new body 2")),
+				cachingDao.getPostsFromDb(userSeven).getPostDataList());
+
+		PostDataBulkResponse deleteResponse = cachingDao.deleteAll(Arrays.asList(1, 9, 2, 5));
+		assertEquals(200, deleteResponse.getApiError().code);
+		assertArrayEquals(new int[]{1, 0, 1, 1}, deleteResponse.getResults());
+		assertEquals(Arrays.asList(3, 4), ids(cachingDao.getPostsFromDb(new PostDataQuery())));
+		assertTrue(cachingDao.getPostsFromDb(userSeven).getPostDataList().isEmpty());
+	}
+
+	@Test
+	void bulkUpdateRollsBackAllItemsOnFailure() throws SQLException {
+		postDataDao.setBatchSize(2);
+		postDataDao.saveAll(posts(5));
+		try (PooledConnection connection = connectionPool.getWriteConnection()) {
+			connection.prepareStatement(
+					"CREATE TRIGGER reject_title AFTER UPDATE ON posts WHEN NEW.title = 'rejected' "
+							+ "BEGIN SELECT RAISE(ABORT, 'rejected title'); END")
+					.executeUpdate();
+		}
+
+		PostDataBulkResponse response = postDataDao.updateAll(Arrays.asList(
+				new PostData(1, 1, "new title 1", "body 1"),
+				new PostData(2, 2, "new title 2", "body 2"),
+				new PostData(3, 3, "rejected", "body 3")));
+
+		assertTrue(response.getApiError().code != 200);
+		assertArrayEquals(new int[]{0, 0, 0}, response.getResults());
+		assertEquals(posts(5), postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+		assertArrayEquals(new int[]{1}, postDataDao.updateAll(
+				Collections.singletonList(new PostData(1, 1, "new title 1", "body 1"))).getResults());
+	}
+
+	@Test
+	void bulkUpdateAndDeleteSpanSeveralBatches() {
+		postDataDao.saveAll(posts(2_500));
+		List<PostData> updated = posts(2_500).stream()
+				.map(postData -> new PostData(postData.getUserId(), postData.getId(), "new " + postData.getTitle(), postData.getBody()))
+				.collect(Collectors.toList());
+		List<Integer> ids = updated.stream().map(PostData::getId).collect(Collectors.toList());
+
+		PostDataBulkResponse updateResponse = postDataDao.updateAll(updated);
+		assertEquals(2_500, updateResponse.getRows());
+		assertEquals(updated, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+
+		PostDataBulkResponse deleteResponse = postDataDao.deleteAll(ids);
+		assertEquals(2_500, deleteResponse.getRows());
+		assertTrue(postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList().isEmpty());
+	}
+
+	@Test
+	void readersKeepReadingDuringBulkWrite() throws Exception {
+		// a small page cache makes the writer spill its changes to the database file before the commit,
+		// which in the rollback journal mode would lock the readers out until the end of the transaction
+		connectionPool.destroy();
+		connectionPool = new SqliteConnectionPool(
+				"jdbc:sqlite:" + tempDir.resolve("posts-wal.db"), READ_POOL_SIZE, 32, 5000);
+		connectionPool.setCacheSize(100);
+		new PostDataSchemaInitializer(connectionPool).initialize();
+		postDataDao = new PostDataDao(connectionPool);
+		postDataDao.saveAll(posts(10_000));
+		List<PostData> bulk = new ArrayList<>();
+		for (int i = 10_001; i <= 60_000; i++) {
+			bulk.add(new PostData(i % 10, i, "title " + i, "body " + i));
+		}
+		PostDataQuery userThree = new PostDataQuery();
+		userThree.setUserId(3);
+		userThree.setLimit(100_000);
+
+		ExecutorService executor = Executors.newFixedThreadPool(READ_POOL_SIZE + 1);
+		CountDownLatch writeStarted = new CountDownLatch(1);
+		AtomicBoolean writing = new AtomicBoolean(true);
+		try {
+			Future<?> write = executor.submit(() -> {
+				writeStarted.countDown();
+				assertEquals(200, postDataDao.saveAll(bulk).getApiError().code);
+				writing.set(false);
+			});
+			writeStarted.await();
+
+			List<Future<List<Integer>>> readers = new ArrayList<>();
+			for (int i = 0; i < READ_POOL_SIZE; i++) {
+				readers.add(executor.submit(() -> {
+					List<Integer> sizes = new ArrayList<>();
+					while (writing.get()) {
+						PostDataJsonResponse response = postDataDao.getPostsFromDb(userThree);
+						assertEquals(200, response.getApiError().code);
+						sizes.add(response.getPostDataList().size());
+					}
+					return sizes;
+				}));
+			}
+
+			write.get(60, TimeUnit.SECONDS);
+			for (Future<List<Integer>> reader : readers) {
+				List<Integer> sizes = reader.get(60, TimeUnit.SECONDS);
+				// a reader sees either the table before the commit or after it, never a part of the write,
+				// and once it has seen the commit it never sees the table before it again
+				assertTrue(sizes.stream().allMatch(size -> size == 1_000 || size == 6_000), "read " + sizes);
+				assertTrue(sizes.indexOf(6_000) < 0 || sizes.lastIndexOf(1_000) < sizes.indexOf(6_000), "read " + sizes);
+				// the readers weren't locked out by the open write transaction
+				assertTrue(sizes.contains(1_000), "read " + sizes);
+			}
+			assertEquals(6_000, postDataDao.getPostsFromDb(userThree).getPostDataList().size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void writeBehindCoalescesConcurrentUpdatesIntoBatches() throws Exception {
+		int hotIds = 64;
+		int threads = 8;
+		int rounds = 20;
+		int updates = hotIds * rounds;
+		postDataDao.saveAll(posts(hotIds));
+
+		// acked on flush, the callers wait for the flush of their update, the ones waiting together share a flush
+		SimpleMeterRegistry flushMeters = new SimpleMeterRegistry();
+		PostDataWriteBehind flushAck = writeBehind(PostDataWriteBehind.ACK_FLUSH, 5, flushMeters);
+		updateConcurrently(threads, rounds, hotIds, "flushed", postData -> flushAck.update(postData).join());
+		flushAck.destroy();
+		// every thread waits for its update before writing its next post, so none of them is coalesced
+		double written = flushMeters.get("posts.write-behind.writes").tag("outcome", "written").counter().count();
+		long flushes = flushMeters.get("posts.write-behind.flush").tag("outcome", "success").timer().count();
+		assertEquals(updates, written);
+		assertNull(flushMeters.find("posts.write-behind.writes").tag("outcome", "coalesced").counter());
+		assertTrue(flushes >= 1 && flushes <= updates, flushes + " flushes of " + updates + " updates");
+		for (PostData postData : postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList()) {
+			assertEquals("flushed " + (rounds - 1), postData.getTitle());
+		}
+
+		// acked on enqueue, the updates wait for the flush interval, so every post is written once, by its last update
+		SimpleMeterRegistry enqueueMeters = new SimpleMeterRegistry();
+		PostDataWriteBehind enqueueAck = writeBehind(PostDataWriteBehind.ACK_ENQUEUE, 60_000, enqueueMeters);
+		updateConcurrently(threads, rounds, hotIds, "enqueued", postData -> enqueueAck.update(postData).join());
+		assertEquals(hotIds, enqueueAck.getPendingWrites());
+		assertEquals("flushed " + (rounds - 1), postDataDao.getPostById(1).getPostData().getTitle());
+		enqueueAck.destroy();
+		assertEquals(0, enqueueAck.getPendingWrites());
+		assertEquals(hotIds, enqueueMeters.get("posts.write-behind.writes").tag("outcome", "written").counter().count());
+		assertEquals(updates - hotIds,
+				enqueueMeters.get("posts.write-behind.writes").tag("outcome", "coalesced").counter().count());
+		assertEquals(1, enqueueMeters.get("posts.write-behind.flush").tag("outcome", "success").timer().count());
+		// the buffered updates are flushed when the write-behind is stopped, the last one of every post wins
+		for (PostData postData : postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList()) {
+			assertEquals("enqueued " + (rounds - 1), postData.getTitle());
+		}
+
+		PostDataWriteBehind writeBehind = writeBehind(PostDataWriteBehind.ACK_FLUSH, 5, new SimpleMeterRegistry());
+		assertEquals(404, writeBehind.update(new PostData(1, hotIds + 1, "title", "body")).join().code);
+		assertEquals(200, writeBehind.delete(1).join().code);
+		assertEquals(404, postDataDao.getPostById(1).getApiError().code);
+		writeBehind.destroy();
+		assertEquals(503, writeBehind.update(new PostData(1, 2, "title", "body")).join().code);
+	}
+
+	@Test
+	void writeBehindKeepsADeleteFollowedByAnUpdate() throws Exception {
+		postDataDao.saveAll(posts(3));
+
+		// buffered for the flush interval, the update of the deleted post is refused instead of replacing the delete
+		PostDataWriteBehind enqueueAck = writeBehind(PostDataWriteBehind.ACK_ENQUEUE, 60_000, new SimpleMeterRegistry());
+		assertEquals(202, enqueueAck.delete(1).join().code);
+		assertEquals(404, enqueueAck.update(new PostData(1, 1, "updated", "body")).join().code);
+		assertEquals(1, enqueueAck.getPendingWrites());
+		enqueueAck.destroy();
+		assertEquals(404, postDataDao.getPostById(1).getApiError().code);
+
+		// acked on flush through the service, the delete is answered once committed and the update with 404
+		PostDataWriteBehind flushAck = writeBehind(PostDataWriteBehind.ACK_FLUSH, 5, new SimpleMeterRegistry());
+		PostDataService postDataService = new PostDataService();
+		postDataService.setPostDataDao(postDataDao);
+		postDataService.setWriteBehind(flushAck);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CompletableFuture<ApiError> delete = postDataService.deletePostAsync(2, executor);
+			CompletableFuture<ApiError> update = postDataService.updatePostAsync(
+					new PostData(1, 2, "updated", "body"), executor);
+			assertEquals(200, delete.get(10, TimeUnit.SECONDS).code);
+			assertEquals(404, update.get(10, TimeUnit.SECONDS).code);
+		} finally {
+			executor.shutdownNow();
+			flushAck.destroy();
+		}
+		assertEquals(404, postDataDao.getPostById(2).getApiError().code);
+		assertEquals(Collections.singletonList(3), ids(postDataDao.getPostsFromDb(new PostDataQuery())));
+	}
+
+	private PostDataWriteBehind writeBehind(String ack, long flushInterval, SimpleMeterRegistry meterRegistry) {
+		PostDataWriteBehind writeBehind = new PostDataWriteBehind(postDataDao, true, flushInterval, 1000, 10_000, ack);
+		writeBehind.setMeterRegistry(meterRegistry);
+		writeBehind.start();
+		return writeBehind;
+	}
+
+	/**
+	 * Every thread updates its own share of the ids in rounds, the title of an update is the label and its round.
+	 */
+	private static void updateConcurrently(int threads, int rounds, int ids, String label,
+			Function<PostData, ApiError> update) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> writers = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				writers.add(executor.submit(() -> {
+					for (int round = 0; round < rounds; round++) {
+						for (int id = thread + 1; id <= ids; id += threads) {
+							int code = update.apply(new PostData(1, id, label + " " + round, "body")).code;
+							assertTrue(code == 200 || code == 202, "status " + code);
+						}
+					}
+				}));
+			}
+			for (Future<?> writer : writers) {
+				writer.get(120, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void changeLogRecordsEveryWriteAndResetsAfterPrunedChanges() {
+		postDataDao.saveAll(posts(3));
+		assertEquals(200, postDataDao.updatePost(new PostData(7, 2, "new title", "new body")).code);
+		// the upsert of an unchanged post writes nothing, so it's not a change
+		assertEquals(200, postDataDao.savePost(new PostData(7, 2, "new title", "new body")).code);
+		assertEquals(200, postDataDao.deletePost(3).code);
+		PostDataDiff diff = PostDataDiff.computeChanges(Collections.singletonList(new PostData(1, 4, "title 4", "body 4")),
+				new HashMap<>(), new HashSet<>());
+		assertEquals(200, postDataDao.applyDiff(diff).code);
+
+		PostDataChangesResponse response = postDataDao.getChanges(0, 100);
+		assertEquals(200, response.getApiError().code);
+		assertEquals(Arrays.asList("insert", "insert", "insert", "update", "delete", "insert"),
+				response.getChanges().stream().map(PostDataChange::getType).collect(Collectors.toList()));
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L),
+				response.getChanges().stream().map(PostDataChange::getSeq).collect(Collectors.toList()));
+		assertEquals(6, response.getLastSeq());
+
+		response = postDataDao.getChanges(3, 2);
+		assertEquals(Arrays.asList(new PostDataChange(4, "update", 2, new PostData(7, 2, "new title", "new body")),
+				new PostDataChange(5, "delete", 3, null)), response.getChanges());
+		assertEquals(5, response.getLastSeq());
+		assertEquals(false, response.isReset());
+		// the insert of a post deleted since comes without the post
+		assertNull(postDataDao.getChanges(2, 1).getChanges().get(0).getPostData());
+
+		assertEquals(6, postDataDao.getChanges(-1, 100).getLastSeq());
+		assertTrue(postDataDao.getChanges(-1, 100).getChanges().isEmpty());
+		assertEquals(false, postDataDao.getChanges(6, 100).isReset());
+		response = postDataDao.getChanges(10, 100);
+		assertTrue(response.isReset());
+		assertEquals(6, response.getLastSeq());
+
+		PostDataSchemaInitializer initializer = new PostDataSchemaInitializer(connectionPool);
+		initializer.setChangeRetention(10);
+		initializer.initialize();
+		// 1996 inserts and the updates of the posts 2 and 4, with the changes up to 1990 pruned at the 2000th one
+		postDataDao.saveAll(posts(2_000));
+		response = postDataDao.getChanges(0, 100);
+		assertTrue(response.isReset());
+		assertEquals(1_991, response.getChanges().get(0).getSeq());
+		assertEquals(2_005, postDataDao.getChanges(-1, 100).getLastSeq());
+	}
+
+	@Test
+	void changeFeedPushesChangesInOrderAndResumes() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		PostDataChangeFeed changeFeed = new PostDataChangeFeed(postDataDao, executor, 2);
+		try {
+			BlockingQueue<PostDataChange> live = new LinkedBlockingQueue<>();
+			PostDataChangeFeed.Subscription subscription = changeFeed.subscribe(0, live::add, e -> { });
+			BlockingQueue<PostDataChange> replayed = new LinkedBlockingQueue<>();
+			postDataDao.saveAll(posts(5));
+			for (int i = 1; i <= 5; i++) {
+				postDataDao.updatePost(new PostData(i, i, "title " + i + " updated", "body"));
+			}
+			postDataDao.deleteAll(Arrays.asList(1, 2));
+			changeFeed.subscribe(5, replayed::add, e -> { });
+
+			List<Long> liveSeqs = new ArrayList<>();
+			List<Long> replayedSeqs = new ArrayList<>();
+			for (int i = 0; i < 12; i++) {
+				liveSeqs.add(live.poll(10, TimeUnit.SECONDS).getSeq());
+			}
+			for (int i = 0; i < 7; i++) {
+				replayedSeqs.add(replayed.poll(10, TimeUnit.SECONDS).getSeq());
+			}
+			assertEquals(LongStream.rangeClosed(1, 12).boxed().collect(Collectors.toList()), liveSeqs);
+			assertEquals(LongStream.rangeClosed(6, 12).boxed().collect(Collectors.toList()), replayedSeqs);
+			assertEquals(2, changeFeed.getSubscribers());
+
+			subscription.cancel();
+			postDataDao.deletePost(3);
+			assertEquals(13, replayed.poll(10, TimeUnit.SECONDS).getSeq());
+			assertNull(live.poll(100, TimeUnit.MILLISECONDS));
+			assertEquals(1, changeFeed.getSubscribers());
+
+			BlockingQueue<PostDataChange> ahead = new LinkedBlockingQueue<>();
+			changeFeed.subscribe(100, ahead::add, e -> { });
+			assertEquals(new PostDataChange(13, PostDataChange.RESET, 0, null), ahead.poll(10, TimeUnit.SECONDS));
+
+			CompletableFuture<Throwable> failure = new CompletableFuture<>();
+			changeFeed.subscribe(0, change -> {
+				throw new IOException("client gone");
+			}, failure::complete);
+			assertEquals("client gone", failure.get(10, TimeUnit.SECONDS).getMessage());
+			assertEquals(2, changeFeed.getSubscribers());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void getPostsFromDbOrdersFiltersAndPagesInSql() {
+		postDataDao.saveAll(Arrays.asList(
+				new PostData(1, 1, "c", "body"),
+				new PostData(2, 2, "a", "body"),
+				new PostData(1, 3, "b", "body"),
+				new PostData(1, 4, "a", "body"),
+				new PostData(2, 5, "ęśąćż", "ęśąćż")));
+
+		PostDataQuery query = new PostDataQuery();
+		query.setFilterTitle(PostDataQuery.ASCENDING);
+		assertEquals(Arrays.asList(2, 4, 3, 1, 5), ids(postDataDao.getPostsFromDb(query)));
+
+		query.setFilterTitle(PostDataQuery.DESCENDING);
+		query.setUserId(1);
+		assertEquals(Arrays.asList(1, 3, 4), ids(postDataDao.getPostsFromDb(query)));
+
+		query = new PostDataQuery();
+		query.setFilterTitle(PostDataQuery.ASCENDING);
+		query.setLimit(2);
+		query.setOffset(1);
+		assertEquals(Arrays.asList(4, 3), ids(postDataDao.getPostsFromDb(query)));
+
+		query.setOffset(null);
+		query.setAfterId(4);
+		assertEquals(Arrays.asList(3, 1), ids(postDataDao.getPostsFromDb(query)));
+
+		query.setAfterTitle("a");
+		query.setAfterId(2);
+		assertEquals(Arrays.asList(4, 3), ids(postDataDao.getPostsFromDb(query)));
+
+		query = new PostDataQuery();
+		query.setFilterTitle("unknown");
+		query.setAfterId(3);
+		assertEquals(Arrays.asList(4, 5), ids(postDataDao.getPostsFromDb(query)));
+	}
+
+	@Test
+	void streamPostsFromDbWritesJsonAndNdjson() throws IOException {
+		postDataDao.saveAll(Arrays.asList(
+				new PostData(1, 1, "title", "body"),
+				new PostData(100, 100, "ęśąćż", "ęśąćż")));
+		PostDataService postDataService = new PostDataService();
+		postDataService.setPostDataDao(postDataDao);
+
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		postDataService.streamPostsFromDb(new PostDataQuery(), false, false, json);
+		assertEquals("[{\"userId\":1,\"id\":1,\"title\":\"title\",\"body\":\"body\"}," +
+						"{\"userId\":100,\"id\":100,\"title\":\"ęśąćż\",\"body\":\"ęśąćż\"}]",
+				json.toString(StandardCharsets.UTF_8));
+
+		ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+		postDataService.streamPostsFromDb(new PostDataQuery(), true, true, ndjson);
+		assertEquals("{\"id\":1,\"title\":\"title\",\"body\":\"body\"}\n" +
+						"{\"id\":100,\"title\":\"ęśąćż\",\"body\":\"ęśąćż\"}\n",
+				ndjson.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void streamPostsFromDbExportsLargeTable() throws IOException {
+		int rows = 200_000;
+		postDataDao.saveAll(posts(rows));
+		PostDataService postDataService = new PostDataService();
+		postDataService.setPostDataDao(postDataDao);
+
+		int[] lines = new int[1];
+		OutputStream lineCounter = new OutputStream() {
+			@Override
+			public void write(int b) {
+				if (b == '\n') {
+					lines[0]++;
+				}
+			}
+		};
+		ApiError status = postDataService.streamPostsFromDb(new PostDataQuery(), false, true, lineCounter);
+
+		assertEquals(200, status.code);
+		assertEquals(rows, lines[0]);
+	}
+
+	@Test
+	void cachingDaoServesRepeatedQueriesAndEvictsAffectedEntries() {
+		postDataDao.saveAll(posts(10));
+		CachingPostDataDao cachingDao = new CachingPostDataDao(postDataDao, 100);
+		PostDataQuery userOne = new PostDataQuery();
+		userOne.setUserId(1);
+		PostDataQuery userTwo = new PostDataQuery();
+		userTwo.setUserId(2);
+
+		cachingDao.getPostsFromDb(userOne);
+		cachingDao.getPostsFromDb(userTwo);
+		cachingDao.getPostsFromDb(userTwo);
+		assertEquals(1, cachingDao.getStats().getHits());
+		assertEquals(2, cachingDao.getStats().getMisses());
+
+		cachingDao.savePost(new PostData(1, 11, "title 11", "body 11"));
+		assertEquals(1, cachingDao.getStats().getInvalidations());
+		assertEquals(Arrays.asList(1, 11), ids(cachingDao.getPostsFromDb(userOne)));
+		assertEquals(Collections.singletonList(2), ids(cachingDao.getPostsFromDb(userTwo)));
+		assertEquals(2, cachingDao.getStats().getHits());
+
+		cachingDao.deletePost(2);
+		assertTrue(cachingDao.getPostsFromDb(userTwo).getPostDataList().isEmpty());
+	}
+
+	@Test
+	void cachingDaoEvictsLeastRecentlyUsedEntriesOverMaxRows() {
+		postDataDao.saveAll(posts(10));
+		CachingPostDataDao cachingDao = new CachingPostDataDao(postDataDao, 5);
+		PostDataQuery firstPage = new PostDataQuery();
+		firstPage.setLimit(3);
+		PostDataQuery secondPage = new PostDataQuery();
+		secondPage.setLimit(3);
+		secondPage.setAfterId(3);
+
+		cachingDao.getPostsFromDb(firstPage);
+		cachingDao.getPostsFromDb(secondPage);
+		cachingDao.getPostsFromDb(new PostDataQuery());
+
+		assertEquals(1, cachingDao.getStats().getEvictions());
+		assertEquals(1, cachingDao.getStats().getEntries());
+		assertEquals(3, cachingDao.getStats().getRows());
+	}
+
+	@Test
+	void skipUserIdDoesNotModifyCachedPosts() {
+		postDataDao.saveAll(posts(3));
+		PostDataService postDataService = new PostDataService();
+		postDataService.setPostDataDao(new CachingPostDataDao(postDataDao, 100));
+
+		postDataService.getPostsFromDb(new PostDataQuery(), false);
+		PostDataJsonResponse skipped = postDataService.getPostsFromDb(new PostDataQuery(), true);
+		PostDataJsonResponse cached = postDataService.getPostsFromDb(new PostDataQuery(), false);
+
+		assertEquals(0, skipped.getPostDataList().get(1).getUserId());
+		assertEquals(2, cached.getPostDataList().get(1).getUserId());
+	}
+
+	@Test
+	void syncPostsFromApiToDbWritesOnlyTheDiff() throws JsonProcessingException {
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer mockServer = MockRestServiceServer.bindTo(restTemplate).build();
+		PostDataService postDataService = new PostDataService();
+		postDataService.setRestTemplate(restTemplate);
+		postDataService.setPostDataDao(postDataDao);
+
+		List<PostData> upstream = posts(3);
+		List<PostData> changedUpstream = Arrays.asList(
+				new PostData(1, 1, "title 1", "body 1"),
+				new PostData(2, 2, "changed title", "body 2"),
+				new PostData(4, 4, "title 4", "body 4"));
+		for (List<PostData> response : Arrays.asList(upstream, upstream, changedUpstream)) {
+			mockServer.expect(ExpectedCount.once(), requestTo(URL))
+					.andRespond(withStatus(HttpStatus.OK)
+							.contentType(MediaType.APPLICATION_JSON)
+							.body(new ObjectMapper().writeValueAsBytes(response)));
+		}
+
+		SyncRunResult first = postDataService.syncPostsFromApiToDb();
+		assertEquals(3, first.getRowsFetched());
+		assertEquals(3, first.getRowsInserted());
+
+		long tableVersion = postDataDao.getTableVersion();
+		SyncRunResult unchanged = postDataService.syncPostsFromApiToDb();
+		assertEquals(3, unchanged.getRowsFetched());
+		assertEquals(0, unchanged.getRowsChanged());
+		assertEquals(tableVersion, postDataDao.getTableVersion());
+
+		SyncRunResult changed = postDataService.syncPostsFromApiToDb();
+		assertEquals(1, changed.getRowsInserted());
+		assertEquals(1, changed.getRowsUpdated());
+		assertEquals(1, changed.getRowsDeleted());
+		assertEquals(changedUpstream, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+		assertEquals(changed, postDataService.getLastSyncResult());
+		mockServer.verify();
+	}
+
+	@Test
+	void syncRestoresPostsEditedOrDeletedLocally() throws JsonProcessingException {
+		RestTemplate restTemplate = new RestTemplate();
+		MockRestServiceServer mockServer = MockRestServiceServer.bindTo(restTemplate).build();
+		PostDataService postDataService = new PostDataService();
+		postDataService.setRestTemplate(restTemplate);
+		postDataService.setPostDataDao(postDataDao);
+		List<PostData> upstream = posts(4);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+		byte[] body = new ObjectMapper().writeValueAsBytes(upstream);
+		mockServer.expect(ExpectedCount.twice(), requestTo(URL))
+				.andExpect(headerDoesNotExist(HttpHeaders.IF_NONE_MATCH))
+				.andRespond(withStatus(HttpStatus.OK)
+						.contentType(MediaType.APPLICATION_JSON)
+						.headers(headers)
+						.body(body));
+		mockServer.expect(ExpectedCount.once(), requestTo(URL))
+				.andExpect(header(HttpHeaders.IF_NONE_MATCH, "\"v1\""))
+				.andRespond(withStatus(HttpStatus.NOT_MODIFIED));
+		mockServer.expect(ExpectedCount.once(), requestTo(URL))
+				.andExpect(headerDoesNotExist(HttpHeaders.IF_NONE_MATCH))
+				.andRespond(withStatus(HttpStatus.OK)
+						.contentType(MediaType.APPLICATION_JSON)
+						.headers(headers)
+						.body(body));
+
+		assertEquals(4, postDataService.syncPostsFromApiToDb().getRowsInserted());
+		postDataDao.deletePost(1);
+		postDataDao.updatePost(new PostData(2, 2, "edited", "edited"));
+		postDataDao.deleteAll(Collections.singletonList(3));
+		postDataDao.updateAll(Collections.singletonList(new PostData(4, 4, "edited", "edited")));
+
+		SyncRunResult restored = postDataService.syncPostsFromApiToDb();
+		assertEquals(4, restored.getRowsChanged());
+		assertEquals(0, restored.getRowsDeleted());
+		assertEquals(upstream, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+		assertTrue(postDataService.syncPostsFromApiToDb().isUpstreamNotModified());
+
+		postDataDao.writeAll(Collections.singletonList(new PostData(2, 2, "edited", "edited")),
+				Collections.singletonList(1));
+		assertEquals(2, postDataService.syncPostsFromApiToDb().getRowsChanged());
+		assertEquals(upstream, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+		mockServer.verify();
+	}
+
+	@Test
+	void syncFetchesPagesOfSeveralSourcesInParallel() throws Exception {
+		int latencyMs = 50;
+		int pageSize = 50;
+		List<PostData> posts = posts(1000);
+		List<PostData> mirror = new ArrayList<>();
+		for (int i = 901; i <= 1100; i++) {
+			mirror.add(new PostData(1, i, "mirrored " + i, "body " + i));
+		}
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		HttpServer upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		upstream.createContext("/posts", pagedSource(posts, latencyMs, inFlight, maxInFlight));
+		upstream.createContext("/mirror", pagedSource(mirror, latencyMs, inFlight, maxInFlight));
+		upstream.setExecutor(Executors.newCachedThreadPool());
+		upstream.start();
+		ExecutorService fetchExecutor = Executors.newFixedThreadPool(8);
+		try {
+			String address = "http://localhost:" + upstream.getAddress().getPort();
+			PostDataService postDataService = new PostDataService();
+			postDataService.setRestTemplate(new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+			postDataService.setPostDataDao(postDataDao);
+			postDataService.setApiFetchExecutor(fetchExecutor);
+			postDataService.setApiUrls(new String[]{address + "/posts", address + "/mirror"});
+			postDataService.setApiPageSize(pageSize);
+			postDataService.setApiConcurrency(4);
+
+			SyncRunResult result = postDataService.syncPostsFromApiToDb();
+
+			List<PostData> expected = new ArrayList<>(posts);
+			expected.addAll(mirror.subList(100, 200));
+			assertEquals(200, result.getApiError().code);
+			assertEquals(1200, result.getRowsFetched());
+			assertEquals(1100, result.getRowsInserted());
+			assertEquals(expected, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+			assertEquals(4, maxInFlight.get());
+
+			// the pages are requested concurrency at a time, never more, and one by one with a concurrency of 1
+			postDataService.setApiCacheTtl(0);
+			awaitNoneInFlight(inFlight);
+			maxInFlight.set(0);
+			assertEquals(expected, postDataService.getPostsFromApi().getPostDataList());
+			assertEquals(4, maxInFlight.get());
+			postDataService.setApiConcurrency(1);
+			awaitNoneInFlight(inFlight);
+			maxInFlight.set(0);
+			assertEquals(expected, postDataService.getPostsFromApi().getPostDataList());
+			assertEquals(1, maxInFlight.get());
+		} finally {
+			fetchExecutor.shutdownNow();
+			upstream.stop(0);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {30, 100})
+	void syncDeletesNothingWhenTheSourceCapsThePageSize(int upstreamPosts) throws IOException {
+		List<PostData> posts = posts(upstreamPosts);
+		posts.set(0, new PostData(1, 1, "changed", "changed"));
+		HttpServer upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		upstream.createContext("/all", pagedSource(posts(100), 0, new AtomicInteger(), new AtomicInteger()));
+		upstream.createContext("/capped", pagedSource(posts, 0, new AtomicInteger(), new AtomicInteger(), 20));
+		upstream.createContext("/posts", pagedSource(posts, 0, new AtomicInteger(), new AtomicInteger()));
+		upstream.setExecutor(Executors.newCachedThreadPool());
+		upstream.start();
+		try {
+			String address = "http://localhost:" + upstream.getAddress().getPort();
+			PostDataService postDataService = new PostDataService();
+			postDataService.setRestTemplate(new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+			postDataService.setPostDataDao(postDataDao);
+			postDataService.setApiUrls(new String[]{address + "/all"});
+			postDataService.setApiPageSize(50);
+			postDataService.setApiConcurrency(2);
+			assertEquals(100, postDataService.syncPostsFromApiToDb().getRowsInserted());
+
+			postDataService.setApiUrls(new String[]{address + "/capped"});
+			SyncRunResult capped = postDataService.syncPostsFromApiToDb();
+
+			assertEquals(200, capped.getApiError().code);
+			assertEquals(1, capped.getRowsUpdated());
+			assertEquals(0, capped.getRowsDeleted());
+			assertEquals(100, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList().size());
+			assertEquals(posts.get(0), postDataDao.getPostById(1).getPostData());
+
+			postDataService.setApiUrls(new String[]{address + "/posts"});
+			SyncRunResult complete = postDataService.syncPostsFromApiToDb();
+
+			assertEquals(100 - upstreamPosts, complete.getRowsDeleted());
+			assertEquals(posts, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+		} finally {
+			upstream.stop(0);
+		}
+	}
+
+	@Test
+	void syncOverlapsFetchDiffAndWriteStages() throws IOException {
+		List<PostData> posts = posts(20_000);
+		// the pages past the end wait for the first write, so the fetch can't finish before a batch is written
+		CountDownLatch written = new CountDownLatch(1);
+		AtomicBoolean writtenBeforeFetchEnded = new AtomicBoolean();
+		postDataDao.addChangeListener(written::countDown);
+		HttpHandler source = pagedSource(posts, 0, new AtomicInteger(), new AtomicInteger());
+		HttpServer upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		upstream.createContext("/posts", exchange -> {
+			if (exchange.getRequestURI().getQuery().contains("_start=" + posts.size())) {
+				try {
+					writtenBeforeFetchEnded.set(written.await(60, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			source.handle(exchange);
+		});
+		upstream.setExecutor(Executors.newCachedThreadPool());
+		upstream.start();
+		try {
+			SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+			PostDataService postDataService = new PostDataService();
+			postDataService.setRestTemplate(new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+			postDataService.setPostDataDao(postDataDao);
+			postDataService.setMeterRegistry(meterRegistry);
+			postDataService.setApiUrls(new String[]{"http://localhost:" + upstream.getAddress().getPort() + "/posts"});
+			postDataService.setApiPageSize(500);
+
+			SyncRunResult result = postDataService.syncPostsFromApiToDb();
+			Map<String, SyncStageResult> stages = result.getStages().stream()
+					.collect(Collectors.toMap(SyncStageResult::getStage, stage -> stage));
+			LOGGER.info("Synced {} posts in {} ms: {}", posts.size(), result.getElapsedMillis(), result.getStages());
+
+			assertEquals(200, result.getApiError().code);
+			assertEquals(posts, postDataDao.getPostsFromDb(new PostDataQuery()).getPostDataList());
+			assertEquals(40, stages.get(PostDataSyncPipeline.FETCH).getBatches());
+			assertEquals(posts.size(), stages.get(PostDataSyncPipeline.DIFF).getRows());
+			assertEquals(posts.size(), stages.get(PostDataSyncPipeline.WRITE).getRows());
+			assertTrue(writtenBeforeFetchEnded.get());
+			assertEquals(40, meterRegistry.get("posts.sync.stage.rows").tag("stage", "fetch").counter().count() / 500);
+			assertEquals(0, meterRegistry.get("posts.sync.queue.depth").tag("stage", "write").gauge().value());
+		} finally {
+			upstream.stop(0);
+		}
+	}
+
+	@Test
+	void streamReaderDecodesLargeFeedInBoundedBatches() throws IOException {
+		int rows = 1_000_000;
+		int[] maxBatch = {0};
+		long[] idSum = {0};
+		long start = System.nanoTime();
+
+		int count = new PostDataStreamReader(new ObjectMapper(), 1000).read(feed(rows), batch -> {
+			maxBatch[0] = Math.max(maxBatch[0], batch.size());
+			for (PostData postData : batch) {
+				idSum[0] += postData.getId();
+			}
+		});
+		LOGGER.info("Decoded {} posts in {} ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		assertEquals(rows, count);
+		assertEquals(1000, maxBatch[0]);
+		assertEquals((long) rows * (rows + 1) / 2, idSum[0]);
+	}
+
+	@Test
+	void streamReaderRejectsTruncatedFeed() {
+		InputStream truncated = new ByteArrayInputStream(
+				"[{\"userId\":1,\"id\":1,\"title\":\"t\",\"body\":\"b\"},{\"userId\":1".getBytes(StandardCharsets.UTF_8));
+
+		assertThrows(IOException.class,
+				() -> new PostDataStreamReader(new ObjectMapper(), 1000).read(truncated, batch -> { }));
+	}
+
+	@Test
+	void daoAndPoolRecordMetrics() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		connectionPool.setMeterRegistry(meterRegistry);
+		postDataDao.setMeterRegistry(meterRegistry);
+
+		postDataDao.saveAll(posts(50));
+		postDataDao.getPostsFromDb(new PostDataQuery());
+
+		assertEquals(1, meterRegistry.get("posts.db.query").tags("method", "saveAll", "outcome", "success").timer().count());
+		assertEquals(50, meterRegistry.get("posts.db.rows").tags("method", "getPostsFromDb").summary().totalAmount());
+		assertEquals(1, meterRegistry.get("posts.db.connections.open").tags("lane", "reader").gauge().value());
+		assertEquals(1, meterRegistry.get("posts.db.connections.idle").tags("lane", "writer").gauge().value());
+		assertEquals(2, meterRegistry.get("posts.db.connections.acquire").timers().stream().mapToLong(Timer::count).sum());
+	}
+
+	@Test
+	void pooledConnectionCachesPreparedStatements() throws SQLException {
+		try (PooledConnection connection = connectionPool.getReadConnection()) {
+			PreparedStatement first = connection.prepareStatement("SELECT * FROM posts");
+			PreparedStatement second = connection.prepareStatement("SELECT * FROM posts");
+			assertSame(first, second);
+		}
+	}
+
+	@Test
+	void concurrentReadsStayWithinPoolSize() throws Exception {
+		postDataDao.saveAll(posts(100));
+
+		int clients = 200;
+		int requestsPerClient = 20;
+		long fileDescriptorsBefore = openFileDescriptors();
+		List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		List<Future<Integer>> results = new ArrayList<>();
+		for (int client = 0; client < clients; client++) {
+			results.add(executor.submit(() -> {
+				int failures = 0;
+				for (int request = 0; request < requestsPerClient; request++) {
+					long start = System.nanoTime();
+					PostDataJsonResponse response = postDataDao.getPostsFromDb(new PostDataQuery());
+					latencies.add(System.nanoTime() - start);
+					if (response.getApiError().code != 200 || response.getPostDataList().size() != 100) {
+						failures++;
+					}
+				}
+				return failures;
+			}));
+		}
+		int failures = 0;
+		for (Future<Integer> result : results) {
+			failures += result.get();
+		}
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		Collections.sort(latencies);
+		long p99 = latencies.get((int) (latencies.size() * 0.99) - 1);
+		long fileDescriptorsAfter = openFileDescriptors();
+		LOGGER.info("{} clients: p99 {} ms, open connections {}, open file descriptors {} -> {}",
+				clients, TimeUnit.NANOSECONDS.toMillis(p99), connectionPool.getOpenConnections(),
+				fileDescriptorsBefore, fileDescriptorsAfter);
+
+		assertEquals(0, failures);
+		assertTrue(connectionPool.getOpenConnections() <= READ_POOL_SIZE + 1);
+		if (fileDescriptorsBefore >= 0) {
+			assertTrue(fileDescriptorsAfter - fileDescriptorsBefore <= 2 * READ_POOL_SIZE);
+		}
+	}
+
+	private static List<Integer> searchIds(PostDataSearchResponse response) {
+		return response.getHits().stream().map(hit -> hit.getPostData().getId()).collect(Collectors.toList());
+	}
+
+	private static List<Integer> ids(PostDataJsonResponse response) {
+		return response.getPostDataList().stream().map(PostData::getId).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return - the per-user counts computed from the posts table, to compare with the maintained ones.
+	 */
+	private List<PostDataUserCount> groupPostsByUser() throws SQLException {
+		List<PostDataUserCount> userCounts = new ArrayList<>();
+		try (PooledConnection connection = connectionPool.getReadConnection();
+			 ResultSet resultSet = connection.prepareStatement(
+					 "SELECT userId, count(*) FROM posts GROUP BY userId ORDER BY userId").executeQuery()) {
+			while (resultSet.next()) {
+				userCounts.add(new PostDataUserCount(resultSet.getInt(1), resultSet.getLong(2)));
+			}
+		}
+		return userCounts;
+	}
+
+	/**
+	 * Waits for the pages requested past the end of the sources, which the fetch doesn't wait for.
+	 */
+	private static void awaitNoneInFlight(AtomicInteger inFlight) throws InterruptedException {
+		for (int i = 0; i < 500 && inFlight.get() > 0; i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Serves the _start/_limit pages of the posts after the latency, counting the requests in flight.
+	 */
+	private static HttpHandler pagedSource(
+			List<PostData> posts, int latencyMs, AtomicInteger inFlight, AtomicInteger maxInFlight) {
+		return pagedSource(posts, latencyMs, inFlight, maxInFlight, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Serves pages of at most maxLimit posts, whatever the _limit.
+	 */
+	private static HttpHandler pagedSource(
+			List<PostData> posts, int latencyMs, AtomicInteger inFlight, AtomicInteger maxInFlight, int maxLimit) {
+		return exchange -> {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(latencyMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Map<String, Integer> query = new HashMap<>();
+			for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+				String[] nameAndValue = parameter.split("=");
+				query.put(nameAndValue[0], Integer.parseInt(nameAndValue[1]));
+			}
+			int start = Math.min(query.get("_start"), posts.size());
+			byte[] body = new ObjectMapper().writeValueAsBytes(
+					posts.subList(start, Math.min(start + Math.min(query.get("_limit"), maxLimit), posts.size())));
+			inFlight.decrementAndGet();
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		};
+	}
+
+	private static List<PostData> posts(int count) {
+		List<PostData> postDataList = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			postDataList.add(new PostData(i % 10, i, "title " + i, "body " + i));
+		}
+		return postDataList;
+	}
+
+	/**
+	 * JSON array of the given number of posts, generated while it is read.
+	 */
+	private static InputStream feed(int count) {
+		return new InputStream() {
+			private int next = 0;
+			private byte[] chunk = "[".getBytes(StandardCharsets.UTF_8);
+			private int position = 0;
+
+			@Override
+			public int read() {
+				if (position == chunk.length) {
+					if (next > count) {
+						return -1;
+					}
+					next++;
+					String post = next > count ? "]" : (next > 1 ? "," : "")
+							+ "{\"userId\":" + next % 10 + ",\"id\":" + next
+							+ ",\"title\":\"title " + next + "\",\"body\":\"body " + next + "\"}";
+					chunk = post.getBytes(StandardCharsets.UTF_8);
+					position = 0;
+				}
+				return chunk[position++];
+			}
+		};
+	}
+
+	private static long openFileDescriptors() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof UnixOperatingSystemMXBean) {
+			return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+		}
+		return -1;
+	}
+}